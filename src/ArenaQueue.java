@@ -0,0 +1,73 @@
+// a Frontier that keeps its programs serialized in a ProgramArena, so
+// that queued programs cost a slot of the arena plus an int handle,
+// rather than a handful of heap objects each.  programs are turned
+// back into objects only when they get to the head of the queue.
+public class ArenaQueue implements Frontier<Program> {
+	private final ProgramArena arena;
+	private final int memory_size;
+	private final IntBucketQueue handles = new IntBucketQueue();
+
+	// the head, once peeked at, is kept as an object until it is polled
+	// or displaced, so that changes made to it aren't lost
+	private BrainfuckProgram head = null;
+	private int head_handle;
+
+	public ArenaQueue(ProgramArena arena, int memory_size) {
+		this.arena = arena;
+		this.memory_size = memory_size;
+	}
+
+	@Override
+	public int size() {
+		return handles.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return handles.isEmpty();
+	}
+
+	@Override
+	public void add(Program p, int key) {
+		if (head != null && key < handles.peekKey()) {
+			store(head, head_handle);
+			head = null;
+		}
+		int handle = arena.allocate();
+		store((BrainfuckProgram)p, handle);
+		handles.add(handle, key);
+	}
+
+	@Override
+	public int peekKey() {
+		return handles.peekKey();
+	}
+
+	@Override
+	public Program peek() {
+		if (handles.isEmpty())
+			return null;
+		if (head == null) {
+			head_handle = handles.peek();
+			head = BrainfuckProgram.readFrom(arena.chunk(head_handle), arena.offset(head_handle), memory_size);
+		}
+		return head;
+	}
+
+	@Override
+	public Program poll() {
+		Program p = peek();
+		if (p != null) {
+			handles.poll();
+			arena.free(head_handle);
+			head = null;
+		}
+		return p;
+	}
+
+	private void store(BrainfuckProgram p, int handle) {
+		if (p.serializedSize() > arena.slotSize())
+			throw new IllegalArgumentException("program too large for arena slot: "+p);
+		p.writeTo(arena.chunk(handle), arena.offset(handle));
+	}
+}
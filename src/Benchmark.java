@@ -0,0 +1,342 @@
+import java.util.*;
+
+// crude timings of the search hot path; see BenchmarkSuite for repeatable
+// ones to compare builds by.  run with e.g.
+//   java -cp out Benchmark
+public class Benchmark {
+	public static void main(String[] args) {
+		queue();
+		interpreter();
+		compiled();
+		scheduling();
+		successors();
+		siblings();
+		batch();
+		instrumentation();
+		checkpoint();
+		parallel();
+	}
+
+	// per-dequeue overhead of the frontier queue: a steady state in which
+	// the head is removed, stepped and put back, as in Compressor.compress
+	public static void queue() {
+		List<Program> sample = frontier(4, 8);
+		int rounds = 2000000;
+
+		for (int trial = 0; trial < 3; trial++) {
+			PriorityQueue<Program> heap = new PriorityQueue<Program>(sample);
+			long t0 = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				Program p = heap.remove();
+				heap.add(p);
+			}
+			long t1 = System.nanoTime();
+
+			BucketQueue<Program> buckets = new BucketQueue<Program>();
+			for (Program p: sample)
+				buckets.add(p, p.cost());
+			long t2 = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				Program p = buckets.poll();
+				buckets.add(p, p.cost());
+			}
+			long t3 = System.nanoTime();
+
+			System.out.println(sample.size()+" programs\tPriorityQueue: "+(t1 - t0)/rounds+" ns/dequeue"
+			                   +"\tBucketQueue: "+(t3 - t2)/rounds+" ns/dequeue");
+		}
+	}
+
+	// cost of expanding a finished program into its successors, which
+	// should not depend on the memory size
+	public static void successors() {
+		for (int memory_size: new int[]{ 16, 256, 4096 }) {
+			List<Program> sample = frontier(3, memory_size);
+			int rounds = 200;
+			long t0 = System.nanoTime(), n = 0;
+			for (int i = 0; i < rounds; i++) {
+				for (Program p: sample) {
+					if (!p.finished()) continue;
+					for (Program q: p.successors())
+						if (q != null) n++;
+				}
+			}
+			long t1 = System.nanoTime();
+			System.out.println("memory "+memory_size+"\t"+(t1 - t0)/n+" ns/successor");
+		}
+	}
+
+	// first steps of the successors of finished programs, each
+	// constructed and stepped, against ruling out the doomed ones with
+	// SiblingBatch first.  counts every successor as a step either way.
+	public static void siblings() {
+		List<Program> sample = frontier(3, 8);
+		byte[] xs = { 0, 1, 2, 3, 4, 5, 6, 7 };
+		int rounds = 200;
+		for (int trial = 0; trial < 3; trial++) {
+			long t0 = System.nanoTime(), n = 0, survivors = 0;
+			for (int i = 0; i < rounds; i++) {
+				for (Program p: sample) {
+					if (!p.finished() || p.outputLength() >= xs.length) continue;
+					for (Program q: p.successors()) {
+						if (q == null || q.illegal()) continue;
+						q.step();
+						n++;
+						if (!q.illegal() && q.incrementallyConsistentWith(xs)) survivors++;
+					}
+				}
+			}
+			long t1 = System.nanoTime(), m = 0, batch_survivors = 0;
+			for (int i = 0; i < rounds; i++) {
+				for (Program sampled: sample) {
+					BrainfuckProgram p = (BrainfuckProgram)sampled;
+					if (!p.finished() || p.outputLength() >= xs.length) continue;
+					long doomed = SiblingBatch.doomed(p, xs);
+					m += Long.bitCount(doomed);
+					long surviving = PruningAutomaton.allowed(p.automaton_state) & ~doomed;
+					for (; surviving != 0; surviving &= surviving - 1) {
+						BrainfuckProgram q = new BrainfuckProgram(p, BrainfuckProgram.INSTRUCTIONS[Long.numberOfTrailingZeros(surviving)]);
+						if (q.illegal()) continue;
+						q.step();
+						m++;
+						if (!q.illegal() && q.incrementallyConsistentWith(xs)) batch_survivors++;
+					}
+				}
+			}
+			long t2 = System.nanoTime();
+			System.out.println("scalar: "+n*1000/((t1 - t0)/1000)+" steps/ms"
+			                   +"	batched: "+m*1000/((t2 - t1)/1000)+" steps/ms"
+			                   +"	"+survivors*100/n+"% survive"+(n == m && survivors == batch_survivors ? "" : "\tMISMATCH"));
+		}
+	}
+
+	// time per step on straight-line and loop-heavy programs
+	public static void interpreter() {
+		String[][] programs = {
+			{ "straight", "^^^^>^^^^^^>^^^^^>^^^<<<[.>]" },
+			{ "hello", "^^^^^^^^^^[>^^^^^^^>^^^^^^^^^^>^^^>^<<<<v]>^^.>^.^^^^^^^..^^^.>^^.<<^^^^^^^^^^^^^^^.>.^^^.vvvvvv.vvvvvvvv.>^.>." },
+			{ "nested", "^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^<v]<v]<v]<v]>>>>." },
+			{ "many loops", "^[>^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]^^[v]<v]." },
+		};
+		for (String[] program: programs) {
+			byte[] code = program[1].getBytes();
+			long steps = 0, t0 = System.nanoTime();
+			while (System.nanoTime() - t0 < 1000000000L) {
+				Program p = new BrainfuckProgram(code, 8);
+				while (!p.finished() && !p.illegal())
+					p.step();
+				steps += p.executionTime();
+			}
+			long t1 = System.nanoTime();
+			System.out.println(program[0]+"\t"+(t1 - t0)*1000/steps+" ps/step");
+		}
+	}
+
+	// time per step in step(max_steps), interpreted and compiled, on
+	// programs whose loops can't be accelerated
+	public static void compiled() {
+		String[][] programs = {
+			{ "counter", "^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^>+<<v]<v]<v]<v]>>>>." },
+			{ "operators", "^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^>*^>x<<<v]<v]<v]>>>." },
+			{ "outputs", "^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^^.<v]<v]<v]." },
+		};
+		int threshold = BrainfuckProgram.compileThreshold();
+		for (String[] program: programs) {
+			byte[] code = program[1].getBytes();
+			String line = program[0];
+			for (int compile_threshold: new int[]{ Integer.MAX_VALUE, 0 }) {
+				BrainfuckProgram.setCompileThreshold(compile_threshold);
+				// the first run compiles
+				new BrainfuckProgram(code, 8).step(1);
+				long steps = 0, t0 = System.nanoTime();
+				while (System.nanoTime() - t0 < 1000000000L) {
+					Program p = new BrainfuckProgram(code, 8);
+					while (!p.finished() && !p.illegal() && !p.looping())
+						p.step(Integer.MAX_VALUE);
+					steps += p.executionTime();
+				}
+				long t1 = System.nanoTime();
+				line += "\t"+(compile_threshold == 0 ? "compiled " : "interpreted ")+(t1 - t0)*1000/steps+" ps/step";
+			}
+			System.out.println(line);
+		}
+		BrainfuckProgram.setCompileThreshold(threshold);
+		System.out.println(BrainfuckCompiler.statistics());
+	}
+
+	// wall clock time of whole searches under each scheduler
+	public static void scheduling() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+			{ 1, 2, 4, 8, 16, 32, 64, -128 },
+		};
+		// PHASED takes exponentially longer; give it something it can do
+		byte[][] small = {
+			{ 0, 1, 2, 3, 4 },
+			{ 1, 2, 4, 8 },
+		};
+		for (Compressor.Scheduler scheduler: Compressor.Scheduler.values()) {
+			Compressor c = new Compressor(scheduler);
+			for (byte[] xs: scheduler == Compressor.Scheduler.PHASED ? small : xss) {
+				long t0 = System.nanoTime();
+				Program p = c.compress(xs);
+				long t1 = System.nanoTime();
+				System.out.println(scheduler+"\t"+Arrays.toString(xs)+"\t"+p+"\t"+(t1 - t0)/1000000+" ms");
+			}
+		}
+	}
+
+	// MultiCompressor against compressing its targets one by one, on
+	// batches of short constant and counting sequences
+	public static void batch() {
+		for (int count: new int[]{ 5, 10, 20 }) {
+			byte[][] xss = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				xss[i] = new byte[3 + i / 4];
+				for (int j = 0; j < xss[i].length; j++)
+					xss[i][j] = (byte)(i % 2 + j * (i / 2 % 2));
+			}
+			long t0 = System.nanoTime(), separate_steps = 0;
+			for (byte[] xs: xss) {
+				Compressor c = new Compressor(Compressor.Scheduler.STEPWISE);
+				c.compress(xs);
+				separate_steps += c.steps();
+			}
+			long t1 = System.nanoTime();
+			MultiCompressor batch = new MultiCompressor();
+			batch.compress(xss);
+			long t2 = System.nanoTime();
+			System.out.println(count+" targets\tseparately: "+separate_steps+" steps, "+(t1 - t0)/1000000+" ms"
+			                   +"\tbatch: "+batch.steps()+" steps, "+(t2 - t1)/1000000+" ms");
+		}
+	}
+
+	// cost of keeping SearchStatistics, with a listener that does nothing,
+	// under the queued and the PHASED schedulers.  run to run noise is
+	// large here, so runs are paired, in alternating order, and the
+	// median ratio within pairs is reported.
+	public static void instrumentation() {
+		SearchListener listener = new SearchListener() {
+			@Override
+			public void progress(SearchStatistics statistics) {
+			}
+
+			@Override
+			public void finished(SearchStatistics statistics, Program result) {
+			}
+		};
+		Compressor.Scheduler[] schedulers = { Compressor.Scheduler.TIME_SLICED, Compressor.Scheduler.PHASED };
+		byte[][] xss = {
+			{ 1, 2, 4, 8, 16, 32, 64, -128 },
+			{ 0, 1, 2, 3, 4 },
+		};
+		int pairs = 100;
+		for (int i = 0; i < schedulers.length; i++) {
+			double[] ratios = new double[pairs];
+			// leave out the first pairs for warmup
+			for (int pair = -10; pair < pairs; pair++) {
+				long[] nanos = new long[2];
+				for (int j = 0; j < 2; j++) {
+					int instrumented = (pair + j) & 1;
+					Compressor c = new Compressor(schedulers[i]);
+					if (instrumented == 1)
+						c.setListener(listener);
+					long t0 = System.nanoTime();
+					c.compress(xss[i]);
+					nanos[instrumented] = System.nanoTime() - t0;
+				}
+				if (pair >= 0)
+					ratios[pair] = (double)nanos[1] / nanos[0];
+			}
+			Arrays.sort(ratios);
+			System.out.println(schedulers[i]+String.format("\toverhead: median %.1f%%, quartiles %.1f%% and %.1f%%",
+			                                               100 * (ratios[pairs / 2] - 1), 100 * (ratios[pairs / 4] - 1),
+			                                               100 * (ratios[3 * pairs / 4] - 1)));
+		}
+	}
+
+	// speedup of ParallelCompressor over its own single-threaded run
+	public static void parallel() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+			{ 1, 2, 4, 8, 16, 32, 64, -128 },
+		};
+		int max_threads = Runtime.getRuntime().availableProcessors();
+		for (byte[] xs: xss) {
+			long base = 0;
+			String expected = null;
+			for (int threads = 1; threads <= max_threads; threads *= 2) {
+				long t0 = System.nanoTime();
+				Program p = new ParallelCompressor(threads).compress(xs);
+				long t1 = System.nanoTime();
+				if (threads == 1) {
+					base = t1 - t0;
+					expected = String.valueOf(p);
+				}
+				System.out.println(threads+" threads\t"+Arrays.toString(xs)+"\t"+p+"\t"+(t1 - t0)/1000000+" ms"
+				                   +"\tspeedup "+String.format("%.2f", (double)base/(t1 - t0))
+				                   +(expected.equals(String.valueOf(p)) ? "" : "\tMISMATCH"));
+			}
+		}
+	}
+
+	// the pauses a checkpoint takes out of the search, for queues of
+	// several sizes: starting it, and the longest of the slices it is
+	// captured in, each with the rounds in between, in which the head is
+	// taken off and put back as in Compressor.compress.  the programs are
+	// from a sample frontier, repeated
+	public static void checkpoint() {
+		List<Program> sample = frontier(4, 16);
+		for (int size: new int[]{ 10000, 100000, 1000000 }) {
+			BucketQueue<Program> ps = new BucketQueue<Program>(), to_be_extrapolated = new BucketQueue<Program>();
+			for (int i = 0; i < size; i++) {
+				Program p = sample.get(i % sample.size());
+				(i % 2 == 0 ? ps : to_be_extrapolated).add(p, p.cost());
+			}
+			long start = Long.MAX_VALUE, slice = Long.MAX_VALUE, total = Long.MAX_VALUE;
+			for (int i = 0; i < 20; i++) {
+				long t0 = System.nanoTime();
+				Checkpoint checkpoint = Checkpoint.start(Compressor.Scheduler.TIME_SLICED, new byte[16], 16, 0, 0, ps, to_be_extrapolated);
+				long t1 = System.nanoTime(), longest = 0;
+				boolean done = false;
+				while (!done) {
+					long t2 = System.nanoTime();
+					for (int j = 0; j < Compressor.CHECKPOINT_ROUNDS; j++) {
+						Program p = ps.poll();
+						ps.add(p, p.cost());
+					}
+					done = checkpoint.capture(Compressor.CAPTURE_PROGRAMS);
+					longest = Math.max(longest, System.nanoTime() - t2);
+				}
+				start = Math.min(start, t1 - t0);
+				slice = Math.min(slice, longest);
+				total = Math.min(total, System.nanoTime() - t0);
+			}
+			System.out.println(size+" programs\t"+start / 1000000.0+" ms to start, "+slice / 1000000.0+" ms longest slice, "
+			                   +total / 1000000.0+" ms in all");
+		}
+	}
+
+	// all (unpruned, legal) programs up to the given length, each run
+	// until it finishes
+	static List<Program> frontier(int max_length, int memory_size) {
+		List<Program> ps = new ArrayList<Program>();
+		List<Program> layer = new ArrayList<Program>();
+		layer.add(new BrainfuckProgram(memory_size));
+		for (int length = 1; length <= max_length; length++) {
+			List<Program> next = new ArrayList<Program>();
+			for (Program p: layer) {
+				for (Program q: p.successors()) {
+					if (q == null) continue;
+					while (!q.finished() && !q.illegal() && q.executionTime() < 64)
+						q.step();
+					if (!q.illegal())
+						next.add(q);
+				}
+			}
+			ps.addAll(next);
+			layer = next;
+		}
+		return ps;
+	}
+}
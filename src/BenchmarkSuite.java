@@ -0,0 +1,245 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+// repeatable timings of the search hot path, for comparing builds.  each
+// benchmark runs for a few warmup iterations and then a few measured
+// ones of about ITERATION_MILLIS each, and reports the mean time per
+// operation and its standard deviation over the measured iterations.
+// run with e.g.
+//   java -cp out BenchmarkSuite --json results.json [name prefix]
+//   java -cp out BenchmarkSuite --compare old.json new.json
+// the json file is an array with one result per line.
+public class BenchmarkSuite {
+	private static final int WARMUP_ITERATIONS = 3, MEASURED_ITERATIONS = 5;
+	private static final long ITERATION_MILLIS = 300;
+
+	// one run of a benchmark; returns the number of operations done
+	private interface Workload {
+		long run();
+	}
+
+	private static class Result {
+		final String name, params;
+		final double score, error;
+		final String unit;
+
+		Result(String name, String params, double score, double error, String unit) {
+			this.name = name;
+			this.params = params;
+			this.score = score;
+			this.error = error;
+			this.unit = unit;
+		}
+
+		String key() {
+			return name+" "+params;
+		}
+
+		String toJson() {
+			return String.format(Locale.ROOT, "{\"benchmark\": \"%s\", \"params\": {%s}, \"score\": %.3f, \"error\": %.3f, \"unit\": \"%s\"}",
+			                     name, params, score, error, unit);
+		}
+
+		static final Pattern JSON = Pattern.compile(
+			"\\{\"benchmark\": \"([^\"]*)\", \"params\": \\{([^}]*)\\}, \"score\": ([^,]*), \"error\": ([^,]*), \"unit\": \"([^\"]*)\"\\}");
+
+		static Result fromJson(String line) {
+			Matcher m = JSON.matcher(line);
+			if (!m.find())
+				return null;
+			return new Result(m.group(1), m.group(2), Double.parseDouble(m.group(3)), Double.parseDouble(m.group(4)), m.group(5));
+		}
+	}
+
+	private final String filter;
+	private final List<Result> results = new ArrayList<Result>();
+
+	private BenchmarkSuite(String filter) {
+		this.filter = filter;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("--compare")) {
+			compare(new File(args[1]), new File(args[2]));
+			return;
+		}
+		File json = null;
+		String filter = "";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--json") && i + 1 < args.length)
+				json = new File(args[++i]);
+			else
+				filter = args[i];
+		}
+
+		BenchmarkSuite suite = new BenchmarkSuite(filter);
+		suite.run();
+		if (json != null)
+			suite.write(json);
+	}
+
+	private void run() {
+		for (final int memory_size: new int[]{ 8, 256 }) {
+			for (final int length: new int[]{ 16, 256 }) {
+				benchmark("step.straight", "\"memory\": "+memory_size+", \"length\": "+length, "ns/step",
+				          steps(straight(length), memory_size));
+				benchmark("step.pointer", "\"memory\": "+memory_size+", \"length\": "+length, "ns/step",
+				          steps(pointer(length), memory_size));
+			}
+			benchmark("step.loops", "\"memory\": "+memory_size, "ns/step",
+			          steps("^^^^^^^^[>^^^^^^^^[>^^^^^^^^[>^>+<<v]<v]<v]>>>.", memory_size));
+			benchmark("step.jumps", "\"memory\": "+memory_size, "ns/step", steps(jumps(), memory_size));
+		}
+
+		for (int memory_size: new int[]{ 16, 256, 4096 }) {
+			final List<Program> sample = Benchmark.frontier(3, memory_size);
+			benchmark("successors", "\"memory\": "+memory_size, "ns/successor", new Workload() {
+				@Override
+				public long run() {
+					long n = 0;
+					for (Program p: sample) {
+						if (!p.finished()) continue;
+						for (Program q: p.successors())
+							if (q != null) n++;
+					}
+					return n;
+				}
+			});
+		}
+
+		for (int depth: new int[]{ 3, 4 }) {
+			final List<Program> sample = Benchmark.frontier(depth, 8);
+			final BucketQueue<Program> queue = new BucketQueue<Program>();
+			for (Program p: sample)
+				queue.add(p, p.cost());
+			benchmark("queue", "\"size\": "+sample.size(), "ns/dequeue", new Workload() {
+				@Override
+				public long run() {
+					for (int i = 0; i < 100000; i++) {
+						Program p = queue.poll();
+						queue.add(p, p.cost());
+					}
+					return 100000;
+				}
+			});
+		}
+
+		// the sequences from Main that are found in well under a second
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+			{ 1, 2, 4, 8, 16, 32, 64, -128 },
+		};
+		for (final byte[] xs: xss) {
+			benchmark("compress", "\"sequence\": \""+Arrays.toString(xs)+"\"", "ms/search", new Workload() {
+				@Override
+				public long run() {
+					new Compressor().compress(xs);
+					return 1;
+				}
+			});
+		}
+	}
+
+	private void benchmark(String name, String params, String unit, Workload workload) {
+		if (!name.startsWith(filter))
+			return;
+		// per operation, in the unit's scale
+		double scale = unit.startsWith("ms") ? 1e-6 : 1;
+		double[] scores = new double[MEASURED_ITERATIONS];
+		for (int i = -WARMUP_ITERATIONS; i < MEASURED_ITERATIONS; i++) {
+			long operations = 0, t0 = System.nanoTime(), t1;
+			do {
+				operations += workload.run();
+				t1 = System.nanoTime();
+			} while (t1 - t0 < ITERATION_MILLIS * 1000000);
+			if (i >= 0)
+				scores[i] = (double)(t1 - t0) / operations * scale;
+		}
+		double mean = 0, variance = 0;
+		for (double score: scores)
+			mean += score / scores.length;
+		for (double score: scores)
+			variance += (score - mean) * (score - mean) / (scores.length - 1);
+		Result result = new Result(name, params, mean, Math.sqrt(variance), unit);
+		results.add(result);
+		System.out.println(String.format(Locale.ROOT, "%-16s %-40s %12.3f +- %.3f %s", name, params, mean, Math.sqrt(variance), unit));
+	}
+
+	// runs program from scratch until it stops, over and over
+	private static Workload steps(final String program, final int memory_size) {
+		final byte[] code = program.getBytes();
+		return new Workload() {
+			@Override
+			public long run() {
+				Program p = new BrainfuckProgram(code, memory_size);
+				while (!p.finished() && !p.illegal() && !p.looping())
+					p.step();
+				return p.executionTime();
+			}
+		};
+	}
+
+	// length instructions of moving and counting
+	private static String straight(int length) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length)
+			sb.append("^>^<");
+		return sb.substring(0, length);
+	}
+
+	// cells 0 to 3 point to one another in a cycle, then length '@'s
+	// follow the pointers around
+	private static String pointer(int length) {
+		StringBuilder sb = new StringBuilder("^>^^>^^^>");
+		for (int i = 0; i < length; i++)
+			sb.append('@');
+		return sb.toString();
+	}
+
+	// a loop whose back edge is a '!' to the address in cell 3: set cell
+	// 1 to 90 and cell 3 to 64, and pad so that the loop body starts at 64
+	private static String jumps() {
+		StringBuilder sb = new StringBuilder("^^^^^^^^^^[>^^^^^^^^^<v]>>^^^^^^^^[>^^^^^^^^<v]>");
+		while (sb.length() < 64)
+			sb.append("^v");
+		sb.append("<<[v>>!]");
+		return sb.toString();
+	}
+
+	private void write(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			out.println("[");
+			for (int i = 0; i < results.size(); i++)
+				out.println(results.get(i).toJson()+(i + 1 < results.size() ? "," : ""));
+			out.println("]");
+		}
+	}
+
+	private static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		for (String line: Files.readAllLines(file.toPath())) {
+			Result result = Result.fromJson(line);
+			if (result != null)
+				results.put(result.key(), result);
+		}
+		return results;
+	}
+
+	// new scores relative to old ones, marking differences of more than
+	// both standard deviations together
+	private static void compare(File old_file, File new_file) throws IOException {
+		Map<String, Result> old_results = read(old_file), new_results = read(new_file);
+		for (Result b: new_results.values()) {
+			Result a = old_results.get(b.key());
+			if (a == null)
+				continue;
+			boolean significant = Math.abs(b.score - a.score) > a.error + b.error;
+			System.out.println(String.format(Locale.ROOT, "%-16s %-40s %12.3f -> %12.3f %s  %+6.1f%%%s",
+			                                 b.name, b.params, a.score, b.score, b.unit,
+			                                 100 * (b.score - a.score) / a.score,
+			                                 significant ? (b.score > a.score ? "  slower" : "  faster") : ""));
+		}
+	}
+}
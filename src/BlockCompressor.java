@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// compresses files block by block.  blocks are searched for
+// decompressors concurrently on a fixed number of threads, each search
+// being abandoned after a given number of steps or milliseconds; a
+// block whose decompressor isn't shorter than itself is stored as is.
+//
+// the container starts with a header and an index of fixed-size
+// entries, so that any block can be read on its own:
+//   int magic, int version, int block_size, int block_count, long length
+//   per block: byte kind, int length, long offset, int size
+//   the blocks' contents at their offsets: program text or literal bytes
+public class BlockCompressor {
+	private static final int MAGIC = 0x6266626b, // "bfbk"
+	                         VERSION = 1;
+	private static final int HEADER_SIZE = 24, INDEX_ENTRY_SIZE = 17;
+	private static final byte LITERAL = 0, PROGRAM = 1;
+
+	private final int block_size, thread_count;
+	private final long max_steps, max_millis;
+
+	private long bytes_in = 0, bytes_out = 0, nanos = 0;
+	private int program_blocks = 0, literal_blocks = 0;
+
+	public BlockCompressor(int block_size, int thread_count, long max_steps, long max_millis) {
+		this.block_size = block_size;
+		this.thread_count = thread_count;
+		this.max_steps = max_steps;
+		this.max_millis = max_millis;
+	}
+
+	private static class Block {
+		final byte kind;
+		final int length;
+		final byte[] contents;
+
+		Block(byte kind, int length, byte[] contents) {
+			this.kind = kind;
+			this.length = length;
+			this.contents = contents;
+		}
+	}
+
+	public void compress(File in, File out) throws IOException {
+		long t0 = System.nanoTime();
+		byte[] input = Files.readAllBytes(in.toPath());
+		int block_count = (input.length + block_size - 1) / block_size;
+
+		List<Future<Block>> blocks = new ArrayList<Future<Block>>();
+		ExecutorService executor = Executors.newFixedThreadPool(thread_count);
+		try {
+			for (int i = 0; i < block_count; i++) {
+				final byte[] xs = Arrays.copyOfRange(input, i * block_size, Math.min(input.length, (i + 1) * block_size));
+				blocks.add(executor.submit(new Callable<Block>() {
+					@Override
+					public Block call() {
+						return compressBlock(xs);
+					}
+				}));
+			}
+
+			File temporary = new File(out.getPath()+".tmp");
+			try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+				data.writeInt(MAGIC);
+				data.writeInt(VERSION);
+				data.writeInt(block_size);
+				data.writeInt(block_count);
+				data.writeLong(input.length);
+				long offset = HEADER_SIZE + (long)block_count * INDEX_ENTRY_SIZE;
+				List<Block> done = new ArrayList<Block>();
+				for (Future<Block> future: blocks) {
+					Block block = get(future);
+					done.add(block);
+					data.writeByte(block.kind);
+					data.writeInt(block.length);
+					data.writeLong(offset);
+					data.writeInt(block.contents.length);
+					offset += block.contents.length;
+				}
+				for (Block block: done) {
+					data.write(block.contents);
+					if (block.kind == PROGRAM)
+						program_blocks++;
+					else
+						literal_blocks++;
+				}
+				bytes_out += offset;
+			}
+			Files.move(temporary.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			executor.shutdownNow();
+		}
+		bytes_in += input.length;
+		nanos += System.nanoTime() - t0;
+	}
+
+	private Block compressBlock(byte[] xs) {
+		final long deadline = System.nanoTime() + max_millis * 1000000;
+		Compressor c = new Compressor() {
+			@Override
+			protected boolean abandon(long steps) {
+				return steps > max_steps || System.nanoTime() > deadline;
+			}
+		};
+		Program p = c.compress(xs);
+		if (p != null && p.toString().length() < xs.length)
+			return new Block(PROGRAM, xs.length, p.toString().getBytes());
+		return new Block(LITERAL, xs.length, xs);
+	}
+
+	public static void decompress(File in, File out, int thread_count) throws IOException {
+		try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+			checkHeader(header, in);
+			int block_count = header.getInt(12);
+			long length = header.getLong(16);
+
+			List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+			ExecutorService executor = Executors.newFixedThreadPool(thread_count);
+			try {
+				for (int i = 0; i < block_count; i++) {
+					final int index = i;
+					blocks.add(executor.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return readBlock(channel, index);
+						}
+					}));
+				}
+				File temporary = new File(out.getPath()+".tmp");
+				try (OutputStream data = new BufferedOutputStream(new FileOutputStream(temporary))) {
+					for (Future<byte[]> future: blocks)
+						data.write(get(future));
+				}
+				if (temporary.length() != length)
+					throw new IOException(in+" decompresses to "+temporary.length()+" bytes rather than "+length);
+				Files.move(temporary.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	// the contents of block i of the given container
+	public static byte[] readBlock(File in, int i) throws IOException {
+		try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+			checkHeader(readFully(channel, 0, HEADER_SIZE), in);
+			return readBlock(channel, i);
+		}
+	}
+
+	private static byte[] readBlock(FileChannel channel, int i) throws IOException {
+		ByteBuffer entry = readFully(channel, HEADER_SIZE + (long)i * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+		byte kind = entry.get(0);
+		int length = entry.getInt(1), size = entry.getInt(13);
+		byte[] contents = new byte[size];
+		readFully(channel, entry.getLong(5), size).get(contents);
+		if (kind == LITERAL)
+			return contents;
+		byte[] xs = output(new String(contents), length);
+		if (xs == null)
+			throw new IOException("the program of block "+i+" doesn't output "+length+" bytes");
+		return xs;
+	}
+
+	// the first n bytes output by the given program, with n cells of
+	// memory as Compressor.compress has it, or null if it fails first
+	static byte[] output(String program, int n) {
+		byte[] xs = new byte[n];
+		Program p = new BrainfuckProgram(program.getBytes(), n);
+		while (p.outputLength() < n && !p.finished() && !p.illegal() && !p.looping()) {
+			int k = p.outputLength();
+			p.step(Integer.MAX_VALUE);
+			if (p.outputLength() > k)
+				xs[k] = p.lastOutput();
+		}
+		return p.outputLength() == n ? xs : null;
+	}
+
+	// positional reads, so that threads can share the channel
+	private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void checkHeader(ByteBuffer header, File file) throws IOException {
+		if (header.getInt(0) != MAGIC)
+			throw new IOException(file+" is not a block container");
+		int version = header.getInt(4);
+		if (version != VERSION)
+			throw new IOException(file+" is a block container of unsupported version "+version);
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	// in MB/s of input over the time spent compressing it
+	public double throughput() {
+		return nanos == 0 ? 0 : bytes_in * 1e3 / nanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d bytes in, %d bytes out (%.1f%%); %d blocks as programs, %d as literals; %.3g MB/s in %.1f s",
+		                     bytes_in, bytes_out, bytes_in == 0 ? 0 : 100.0 * bytes_out / bytes_in,
+		                     program_blocks, literal_blocks, throughput(), nanos / 1e9);
+	}
+
+	// compress and decompress a file of both compressible and random
+	// blocks, and read blocks on their own
+	public static void test() {
+		try {
+			File directory = Files.createTempDirectory("blocks").toFile();
+			File original = new File(directory, "original"), compressed = new File(directory, "compressed"),
+			     decompressed = new File(directory, "decompressed");
+
+			int block_size = 16;
+			byte[] input = new byte[8 * block_size + 5];
+			Random random = new Random(1);
+			random.nextBytes(input);
+			for (int j = 0; j < block_size; j++) {
+				input[j] = (byte)j;                        // .^[.^]
+				input[2 * block_size + j] = (byte)(j % 3); // .^.^.>!
+				input[5 * block_size + j] = (byte)(j / 2); // ..^..^..^..^.!
+			}
+			Files.write(original.toPath(), input);
+
+			BlockCompressor c = new BlockCompressor(block_size, 4, 20000, 10000);
+			c.compress(original, compressed);
+			decompress(compressed, decompressed, 4);
+			byte[] output = Files.readAllBytes(decompressed.toPath());
+			byte[] block = readBlock(compressed, 5);
+			if (!Arrays.equals(input, output) || c.program_blocks != 3
+			    || !Arrays.equals(block, Arrays.copyOfRange(input, 5 * block_size, 6 * block_size))
+			    || !Arrays.equals(readBlock(compressed, 8), Arrays.copyOfRange(input, 8 * block_size, input.length))) {
+				System.err.println("block compressor round trip: "+c);
+				System.err.println("original:     "+Arrays.toString(input));
+				System.err.println("decompressed: "+Arrays.toString(output));
+				System.exit(1);
+			}
+
+			for (File file: directory.listFiles())
+				file.delete();
+			directory.delete();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.*;
+import javax.tools.*;
+
+// compiles the instructions of a BrainfuckProgram to a JVM class whose
+// run(p, max_steps) does exactly what p.step(max_steps) would do in the
+// interpreter: same execution time, loop acceleration, loop detection,
+// illegal states and stopping points.  the instructions become cases of
+// a switch on the instruction pointer, with the instruction decoding,
+// bracket matching and stopping checks done at compile time.
+//
+// there is no bytecode assembler in the JDK before the ClassFile API of
+// java 24, so the code is generated as java source and compiled in
+// memory with javac, then defined as a hidden class next to
+// BrainfuckProgram so that it can get at its package-private state.
+// that takes tens of milliseconds, so it's only worth it for programs
+// that run long.  where no compiler is available, compile() returns null
+// and the program stays interpreted.
+public class BrainfuckCompiler {
+	interface Code {
+		int run(BrainfuckProgram p, int max_steps);
+	}
+
+	private static final int CACHE_SIZE = 256;
+
+	// compiled code by instruction string; null values for failures
+	private static final Map<String, Code> cache = new LinkedHashMap<String, Code>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Code> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private static long compilations = 0, compile_nanos = 0;
+
+	public static Code compile(BrainfuckProgram p) {
+		String instructions = p.toString();
+		synchronized (cache) {
+			if (cache.containsKey(instructions))
+				return cache.get(instructions);
+		}
+		Code code = null;
+		try {
+			long t0 = System.nanoTime();
+			code = define(javac(source(p, instructions)));
+			synchronized (cache) {
+				compilations++;
+				compile_nanos += System.nanoTime() - t0;
+			}
+		} catch (Throwable e) {
+			// fall back to the interpreter
+		}
+		synchronized (cache) {
+			cache.put(instructions, code);
+		}
+		return code;
+	}
+
+	public static String statistics() {
+		synchronized (cache) {
+			return compilations+" programs compiled in "+compile_nanos / 1000000+" ms";
+		}
+	}
+
+	private static final String CLASS_NAME = "CompiledBrainfuckProgram";
+
+	static String source(BrainfuckProgram p, String instructions) {
+		int length = instructions.length();
+		StringBuilder outputs = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			outputs.append(instructions.charAt(i) == '.' ? '1' : '0');
+
+		// the state lives in locals while running, and memory is written
+		// to directly after making sure p owns it.  the cases only do
+		// what is particular to their instruction, to keep the method
+		// small enough for the JIT.
+		StringBuilder s = new StringBuilder();
+		s.append("final class "+CLASS_NAME+" implements BrainfuckCompiler.Code {\n");
+		s.append("\tprivate static final String OUTPUTS = \""+outputs+"\";\n");
+		s.append("\tpublic int run(BrainfuckProgram p, int max_steps) {\n");
+		s.append("\t\tif (p.illegal || p.looping) return 0;\n");
+		s.append("\t\tp.ownMemory();\n");
+		s.append("\t\tbyte[] m = p.memory;\n");
+		s.append("\t\tint ms = p.memory_size;\n");
+		s.append("\t\tint ip = p.instruction_pointer, mp = p.memory_pointer, out = p.output_pointer, t = p.execution_time, t0 = t;\n");
+		s.append("\t\tbyte last = p.last_output;\n");
+		s.append("\t\tboolean output = false, illegal = false, looping = false;\n");
+		s.append("\t\tlong h = p.memory_hash, cs = p.checkpoint_state;\n");
+		s.append("\t\tint cd = p.checkpoint_distance, cp = p.checkpoint_power;\n");
+		s.append("\t\tloop:\n");
+		s.append("\t\twhile (t - t0 < max_steps) {\n");
+		s.append("\t\t\tswitch (ip) {\n");
+		for (int i = 0; i < length; i++) {
+			char c = instructions.charAt(i);
+			s.append("\t\t\tcase "+i+": // "+(c >= ' ' && c < 127 ? c : '?')+"\n");
+			line(s, "ip = "+(i + 1)+";");
+			switch (c) {
+			case '<':
+				line(s, "if (--mp < 0) illegal = true;");
+				break;
+			case '>':
+				line(s, "if (++mp >= m.length) {");
+				line(s, "\tif (mp >= ms) illegal = true;");
+				line(s, "\telse m = p.growMemory(mp);");
+				line(s, "}");
+				break;
+			case 'v':
+				write(s, "m[mp] - 1");
+				break;
+			case '^':
+				write(s, "m[mp] + 1");
+				break;
+			case '.':
+				line(s, "last = m[mp];");
+				line(s, "out++;");
+				line(s, "output = true;");
+				break;
+			case '[':
+			case ']': {
+				int target = p.lookupIndexOfMatchingBracketFor(i);
+				String jump = target < 0 || target >= length ? "illegal = true;" : "ip = "+target+";";
+				if (c == '[') {
+					line(s, "if (m[mp] == 0) {");
+					line(s, "\t"+jump);
+					line(s, "} else {");
+					line(s, "\tp.memory_pointer = mp; p.memory_hash = h; p.execution_time = t; p.instruction_pointer = ip;");
+					line(s, "\tp.runSimpleLoop("+i+");");
+					line(s, "\th = p.memory_hash; t = p.execution_time; ip = p.instruction_pointer; m = p.memory;");
+					line(s, "}");
+				} else {
+					line(s, "if (m[mp] != 0) "+jump);
+				}
+				break;
+			}
+			case '@':
+				line(s, "mp = m[mp];");
+				line(s, "if (mp < 0 || mp >= ms) illegal = true;");
+				line(s, "else if (mp >= m.length) m = p.growMemory(mp);");
+				break;
+			case '!':
+				line(s, "ip = m[mp];");
+				line(s, "if (ip < 0 || ip >= "+length+") illegal = true;");
+				break;
+			case '+': case '-': case '*': case '|': case '&': case 'x':
+				line(s, "if (mp == 0) {");
+				line(s, "\tillegal = true;");
+				line(s, "} else {");
+				write(s, "m[mp] "+(c == 'x' ? '^' : c)+" m[mp - 1]");
+				line(s, "}");
+				break;
+			case '/': case '%':
+				line(s, "if (mp == 0 || m[mp - 1] == 0) {");
+				line(s, "\tillegal = true;");
+				line(s, "} else {");
+				write(s, "m[mp] "+c+" m[mp - 1]");
+				line(s, "}");
+				break;
+			default:
+				// other characters reserved
+				line(s, "illegal = true;");
+				break;
+			}
+			line(s, "break;");
+		}
+		s.append("\t\t\tdefault:\n");
+		s.append("\t\t\t\tbreak loop;\n");
+		s.append("\t\t\t}\n");
+		s.append("\t\t\tt++;\n");
+		// brent's loop detection, as in BrainfuckProgram.detectLoop
+		s.append("\t\t\tlong state = h + ip * BrainfuckProgram.INSTRUCTION_POINTER_WEIGHT + mp * BrainfuckProgram.MEMORY_POINTER_WEIGHT\n");
+		s.append("\t\t\t             + out * BrainfuckProgram.OUTPUT_POINTER_WEIGHT;\n");
+		s.append("\t\t\tif (state == cs) {\n");
+		s.append("\t\t\t\tlooping = true;\n");
+		s.append("\t\t\t\tbreak;\n");
+		s.append("\t\t\t} else if (++cd == cp) {\n");
+		s.append("\t\t\t\tcs = state;\n");
+		s.append("\t\t\t\tcd = 0;\n");
+		s.append("\t\t\t\tif (cp < 1 << 30) cp *= 2;\n");
+		s.append("\t\t\t}\n");
+		// stop after output, on becoming illegal, on finishing or
+		// before output
+		s.append("\t\t\tif (output || illegal || ip >= "+length+" || OUTPUTS.charAt(ip) == '1')\n");
+		s.append("\t\t\t\tbreak;\n");
+		s.append("\t\t}\n");
+		s.append("\t\tp.instruction_pointer = ip; p.memory_pointer = mp; p.output_pointer = out; p.execution_time = t;\n");
+		s.append("\t\tp.last_output = last; p.illegal = illegal; p.looping = looping;\n");
+		s.append("\t\tp.memory_hash = h; p.checkpoint_state = cs; p.checkpoint_distance = cd; p.checkpoint_power = cp;\n");
+		s.append("\t\treturn t - t0;\n");
+		s.append("\t}\n");
+		s.append("}\n");
+		return s.toString();
+	}
+
+	// m[mp] = value, keeping the memory hash up to date
+	private static void write(StringBuilder s, String value) {
+		line(s, "{");
+		line(s, "\tbyte v = (byte)("+value+");");
+		line(s, "\th += (v - m[mp]) * BrainfuckProgram.weight(mp);");
+		line(s, "\tm[mp] = v;");
+		line(s, "}");
+	}
+
+	private static void line(StringBuilder s, String line) {
+		s.append("\t\t\t\t").append(line).append('\n');
+	}
+
+	// compile the source in memory and return the class file
+	private static byte[] javac(String source) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			throw new IOException("no java compiler available");
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JavaFileObject input = new SimpleJavaFileObject(URI.create("string:///"+CLASS_NAME+".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignore_encoding_errors) {
+				return source;
+			}
+		};
+		StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+		JavaFileManager files = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("bytes:///"+name+".class"), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						return bytes;
+					}
+				};
+			}
+		};
+
+		List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-proc:none", "-g:none", "-nowarn");
+		StringWriter errors = new StringWriter();
+		boolean ok = compiler.getTask(errors, files, null, options, null, Collections.singletonList(input)).call();
+		files.close();
+		if (!ok)
+			throw new IOException("failed to compile program:\n"+errors);
+		return bytes.toByteArray();
+	}
+
+	private static Code define(byte[] class_file) throws Throwable {
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(class_file, true);
+		return (Code)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+	}
+
+	// run programs under both the interpreter and compiled code, with
+	// several step limits, and compare the complete states they end up in
+	public static void test() {
+		String[] programs = {
+			"^^^^^^^^^^[>.^<v]",
+			"^^^^^^^^^^[>^^^^^^^>^^^^^^^^^^>^^^>^<<<<v]>^^.>^.^^^^^^^..^^^.>^^.<<^^^^^^^^^^^^^^^.>.^^^.vvvvvv.vvvvvvvv.>^.>.",
+			"^^>^[.*]",
+			"^^^^[>^^^^^^^^[>^<v]<v]>>.",
+			"^[>^<]",
+			"^^^!.",
+			"^.[>++.]",
+			"^^>^^^^^@.<%.>/.|&x-.[",
+			"^[>^[-]<v]].",
+			"v@",
+		};
+		List<String> samples = new ArrayList<String>(Arrays.asList(programs));
+		for (Program p: Benchmark.frontier(2, 4))
+			samples.add(p.toString());
+
+		int threshold = BrainfuckProgram.compileThreshold();
+		try {
+			for (String program: samples) {
+				for (int max_steps: new int[]{ 1, 3, 1000 }) {
+					BrainfuckProgram.setCompileThreshold(Integer.MAX_VALUE);
+					String interpreted = trace(program, max_steps);
+					BrainfuckProgram.setCompileThreshold(0);
+					String compiled = trace(program, max_steps);
+					if (!interpreted.equals(compiled)) {
+						System.err.println("program:     "+program+", max_steps "+max_steps);
+						System.err.println("interpreted: "+interpreted);
+						System.err.println("compiled:    "+compiled);
+						System.exit(1);
+					}
+				}
+			}
+		} finally {
+			BrainfuckProgram.setCompileThreshold(threshold);
+		}
+
+		if (ToolProvider.getSystemJavaCompiler() != null && compilations < samples.size()) {
+			System.err.println("only "+compilations+" of "+samples.size()+" programs compiled");
+			System.exit(1);
+		}
+	}
+
+	// the state after each step(max_steps) until the program stops
+	private static String trace(String program, int max_steps) {
+		BrainfuckProgram p = new BrainfuckProgram(program.getBytes(), 4);
+		StringBuilder trace = new StringBuilder();
+		for (int i = 0; i < 10000 && !p.finished() && !p.illegal() && !p.looping(); i++) {
+			int t = p.step(max_steps);
+			trace.append(t+":"+p.state()+" ");
+		}
+		return trace.toString();
+	}
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class BrainfuckProgram extends Program {
@@ -15,41 +16,95 @@ public class BrainfuckProgram extends Program {
 	};
 
 	
-	private final byte[] instructions;
-	private final byte[] memory;
-	private byte last_output; // only store last output
-	private int instruction_pointer = 0, memory_pointer = 0, output_pointer = 0;
+	// successors share their parent's instructions and memory: the
+	// instructions array may lack the last instruction, which is then
+	// kept in last_instruction until someone needs the whole array, and
+	// memory is copied only when it is first written to.
+	//
+	// memory holds the first cells of a tape of memory_size cells, the
+	// rest being zero; it starts out short and is lengthened whenever the
+	// memory pointer moves past its end, so that memory[memory_pointer]
+	// is always there for a legal program.
+	//
+	// what isn't private here is used by code compiled by
+	// BrainfuckCompiler and by SiblingBatch.
+	private byte[] instructions;
+	private byte last_instruction;
+	final int length;
+	byte[] memory;
+	final int memory_size;
+	private boolean memory_shared = false;
+	byte last_output; // only store last output
+	int instruction_pointer = 0, memory_pointer = 0, output_pointer = 0;
 	
-	private final int[][] loop_endpoints;
+	// jumps[i] is the index of the bracket matching the one at i, or -1.
+	// like instructions, it may lack the entry for the last instruction,
+	// which is then kept in last_jump; the '[' matched by the last
+	// instruction still has -1 in jumps in that case.
+	private int[] jumps;
+	private int last_jump = -1;
+	private final OpenBracket open_brackets;
+	private final int code_length;
+	// state of PruningAutomaton after reading the instructions
+	final int automaton_state;
 	
-	private int execution_time = 0;
-	private boolean illegal = false;
+	int execution_time = 0;
+	boolean illegal = false;
+
+	long memory_hash;
+	long checkpoint_state;
+	int checkpoint_distance = 0, checkpoint_power = 1;
+	boolean looping = false;
 
 	// construct the empty program
 	public BrainfuckProgram(int memory_size) {
 		instructions = new byte[0];
-		loop_endpoints = new int[0][2];
-		memory = new byte[memory_size];
+		length = 0;
+		jumps = new int[0];
+		open_brackets = null;
+		this.memory_size = memory_size;
+		memory = new byte[Math.min(memory_size, INITIAL_TAPE_SIZE)];
+		code_length = codeLength(length);
+		automaton_state = PruningAutomaton.START;
+		memory_hash = 0;
+		checkpoint_state = executionStateHash();
 	}
 	
 	// construct a program with the given sequence of instructions
 	public BrainfuckProgram(byte[] instructions, int memory_size) {
+		this(instructions, new byte[Math.min(memory_size, INITIAL_TAPE_SIZE)], memory_size);
+	}
+
+	private BrainfuckProgram(byte[] instructions, byte[] memory, int memory_size) {
 		this.instructions = instructions;
-		this.memory = new byte[memory_size];
-		this.loop_endpoints = new int[Util.count(']', instructions)][2];
-		for (int i = 0, j = 0; i < instructions.length; i++) {
-			if (instructions[i] == ']') {
-				loop_endpoints[j][0] = searchIndexOfMatchingBracketFor(i);
-				loop_endpoints[j][1] = i;
-				j++;
+		this.length = instructions.length;
+		this.memory = memory;
+		this.memory_size = memory_size;
+		this.jumps = new int[length];
+		OpenBracket open_brackets = null;
+		for (int i = 0; i < length; i++) {
+			jumps[i] = -1;
+			if (instructions[i] == '[') {
+				open_brackets = new OpenBracket(i, open_brackets);
+			} else if (instructions[i] == ']' && open_brackets != null) {
+				jumps[i] = open_brackets.index;
+				jumps[open_brackets.index] = i;
+				open_brackets = open_brackets.outer;
 			}
 		}
+		this.open_brackets = open_brackets;
+		this.code_length = codeLength(length);
+		this.automaton_state = PruningAutomaton.run(instructions);
+		this.memory_hash = memoryHash(memory);
+		this.checkpoint_state = executionStateHash();
 	}
 
 	// construct a program that is an extension of that, the only
 	// difference being that it has one additional instruction
 	public BrainfuckProgram(BrainfuckProgram that, byte additional_instruction) {
-		this.memory = that.memory.clone();
+		this.memory = that.memory;
+		this.memory_size = that.memory_size;
+		this.memory_shared = that.memory_shared = true;
 		this.memory_pointer = that.memory_pointer;
 
 		this.last_output = that.last_output;
@@ -58,35 +113,273 @@ public class BrainfuckProgram extends Program {
 		this.execution_time = that.execution_time;
 		this.illegal = that.illegal;
 
-		this.instructions = new byte[that.instructions.length + 1];
-		for (int i = 0; i < that.instructions.length; i++)
-			this.instructions[i] = that.instructions[i];
-		this.instructions[this.instructions.length - 1] = additional_instruction;
-		this.instruction_pointer = that.instruction_pointer;
-
-		if (additional_instruction == ']') {
-			this.loop_endpoints = new int[that.loop_endpoints.length + 1][2];
-			for (int i = 0; i < that.loop_endpoints.length; i++)
-				this.loop_endpoints[i] = that.loop_endpoints[i];
+		this.memory_hash = that.memory_hash;
+		this.checkpoint_state = that.checkpoint_state;
+		this.checkpoint_distance = that.checkpoint_distance;
+		this.checkpoint_power = that.checkpoint_power;
+		this.looping = that.looping;
 
-			int[] loop_endpoints = this.loop_endpoints[this.loop_endpoints.length - 1];
-			loop_endpoints[0] = searchIndexOfMatchingBracketFor(this.instructions.length - 1);
-			loop_endpoints[1] = this.instructions.length - 1;
+		this.instructions = that.instructions();
+		this.last_instruction = additional_instruction;
+		this.length = that.length + 1;
+		this.instruction_pointer = that.instruction_pointer;
+		this.code_length = codeLength(length);
+		this.automaton_state = PruningAutomaton.next(that.automaton_state, additional_instruction);
 
-			// no matching opening bracket
-			if (loop_endpoints[0] < 0)
+		this.jumps = that.jumps();
+		if (additional_instruction == '[') {
+			this.open_brackets = new OpenBracket(length - 1, that.open_brackets);
+		} else if (additional_instruction == ']') {
+			if (that.open_brackets == null) {
+				// no matching opening bracket
+				this.open_brackets = null;
 				this.illegal = true;
+			} else {
+				this.last_jump = that.open_brackets.index;
+				this.open_brackets = that.open_brackets.outer;
+			}
 		} else {
-			this.loop_endpoints = that.loop_endpoints;
+			this.open_brackets = that.open_brackets;
 		}
 	}
 
+	public int nextSuccessorIndex() {
+		return next_successor;
+	}
+
+	// a copy that stays as it is while this program runs on, sharing
+	// memory copy-on-write
+	public BrainfuckProgram snapshot() {
+		return new BrainfuckProgram(this);
+	}
+
+	private BrainfuckProgram(BrainfuckProgram that) {
+		this.instructions = that.instructions;
+		this.last_instruction = that.last_instruction;
+		this.length = that.length;
+		this.memory = that.memory;
+		this.memory_size = that.memory_size;
+		this.memory_shared = that.memory_shared = true;
+		this.last_output = that.last_output;
+		this.instruction_pointer = that.instruction_pointer;
+		this.memory_pointer = that.memory_pointer;
+		this.output_pointer = that.output_pointer;
+		this.jumps = that.jumps;
+		this.last_jump = that.last_jump;
+		this.open_brackets = that.open_brackets;
+		this.code_length = that.code_length;
+		this.automaton_state = that.automaton_state;
+		this.execution_time = that.execution_time;
+		this.illegal = that.illegal;
+		this.memory_hash = that.memory_hash;
+		this.checkpoint_state = that.checkpoint_state;
+		this.checkpoint_distance = that.checkpoint_distance;
+		this.checkpoint_power = that.checkpoint_power;
+		this.looping = that.looping;
+		this.next_successor = that.next_successor;
+	}
+
+	private byte instruction(int i) {
+		return i < instructions.length ? instructions[i] : last_instruction;
+	}
+
+	// the whole instruction sequence; don't modify
+	private byte[] instructions() {
+		if (instructions.length < length) {
+			byte[] all = Arrays.copyOf(instructions, length);
+			all[length - 1] = last_instruction;
+			instructions = all;
+		}
+		return instructions;
+	}
+
+	// the whole jump table; don't modify
+	private int[] jumps() {
+		if (jumps.length < length) {
+			int[] all = Arrays.copyOf(jumps, length);
+			all[length - 1] = last_jump;
+			if (last_jump >= 0)
+				all[last_jump] = length - 1;
+			jumps = all;
+		}
+		return jumps;
+	}
+
+	// persistent stack of the indices of unmatched '['s, innermost first
+	private static class OpenBracket {
+		public final int index;
+		public final OpenBracket outer;
+
+		public OpenBracket(int index, OpenBracket outer) {
+			this.index = index;
+			this.outer = outer;
+		}
+	}
+
+	// make memory safe to write to
+	void ownMemory() {
+		if (memory_shared) {
+			memory = memory.clone();
+			memory_shared = false;
+		}
+	}
+
+	private static final int INITIAL_TAPE_SIZE = 8;
+
+	// lengthen the tape to take in cell i < memory_size, doubling it at
+	// least; the new tape is owned
+	byte[] growMemory(int i) {
+		memory = Arrays.copyOf(memory, Math.min(memory_size, Math.max(i + 1, 2 * memory.length)));
+		memory_shared = false;
+		return memory;
+	}
+
+	private void write(int i, byte value) {
+		ownMemory();
+		memory_hash += (value - memory[i]) * weight(i);
+		memory[i] = value;
+	}
+
+	// memory_hash is the sum of memory[i]*weight(i).  weights are mixed
+	// from i + 1, as mix(0) is 0 and cell 0 would not count.
+	private static final long[] WEIGHTS = new long[4096];
+	static {
+		for (int i = 0; i < WEIGHTS.length; i++)
+			WEIGHTS[i] = Util.mix(i + 1);
+	}
+
+	static long weight(int i) {
+		return i < WEIGHTS.length ? WEIGHTS[i] : Util.mix(i + 1);
+	}
+
+	private static long memoryHash(byte[] memory) {
+		long hash = 0;
+		for (int i = 0; i < memory.length; i++)
+			hash += memory[i] * weight(i);
+		return hash;
+	}
+
+	static final long INSTRUCTION_POINTER_WEIGHT = Util.mix(-1),
+	                  MEMORY_POINTER_WEIGHT = Util.mix(-2),
+	                  OUTPUT_POINTER_WEIGHT = Util.mix(-3),
+	                  LAST_OUTPUT_WEIGHT = Util.mix(-4);
+
+	// extensions of a finished program without open brackets cannot loop
+	// back into it, so their behaviour depends mostly on memory and
+	// output.  not entirely: '!' can jump to any earlier instruction, and
+	// the code is not part of the hash.  that is part of why transpositions
+	// are a heuristic.
+	@Override
+	public long stateHash() {
+		if (!finished() || open_brackets != null)
+			return 0;
+		return memory_hash
+		       + memory_pointer * MEMORY_POINTER_WEIGHT
+		       + output_pointer * OUTPUT_POINTER_WEIGHT
+		       + last_output * LAST_OUTPUT_WEIGHT;
+	}
+
+	// hash of everything that determines what the program does next
+	private long executionStateHash() {
+		return memory_hash
+		       + instruction_pointer * INSTRUCTION_POINTER_WEIGHT
+		       + memory_pointer * MEMORY_POINTER_WEIGHT
+		       + output_pointer * OUTPUT_POINTER_WEIGHT;
+	}
+
+	// brent's cycle detection: compare the state after every step with
+	// the one at the last checkpoint, and move the checkpoint up to the
+	// current state after 1, 2, 4, 8, ... steps.  since the state
+	// includes output_pointer, a repeated state means the program will
+	// go around the same loop forever without output.  (being based on
+	// a hash, this may very rarely misjudge a program.)
+	private void detectLoop() {
+		long state = executionStateHash();
+		if (state == checkpoint_state) {
+			looping = true;
+		} else if (++checkpoint_distance == checkpoint_power) {
+			checkpoint_state = state;
+			checkpoint_distance = 0;
+			if (checkpoint_power < 1 << 30)
+				checkpoint_power *= 2;
+		}
+	}
+
+	// binary representation of the complete execution state, for keeping
+	// programs off the heap.  the layout is
+	//   length, instruction_pointer, memory_pointer, output_pointer,
+	//   execution_time (ints), checkpoint_state (long),
+	//   checkpoint_distance, checkpoint_power (ints), last_output,
+	//   illegal, looping, next_successor (bytes), tape length (int),
+	//   instructions, tape
+	private static final int HEADER_SIZE = 5*4 + 8 + 2*4 + 4 + 4;
+
+	// at most, for a tape of all memory_size cells
+	public static int serializedSize(int length, int memory_size) {
+		return HEADER_SIZE + length + memory_size;
+	}
+
+	public int serializedSize() {
+		return serializedSize(length, memory.length);
+	}
+
+	// write to buffer at the given (absolute) offset
+	public void writeTo(ByteBuffer buffer, int offset) {
+		writeTo(buffer, offset, next_successor);
+	}
+
+	// as above, but with the given value of next_successor.  a finished
+	// program changes only in next_successor (and in how its instructions
+	// are stored), so this may run concurrently with its expansion.
+	public void writeTo(ByteBuffer buffer, int offset, int next_successor) {
+		byte[] instructions = this.instructions;
+		buffer.putInt(offset, length);
+		buffer.putInt(offset + 4, instruction_pointer);
+		buffer.putInt(offset + 8, memory_pointer);
+		buffer.putInt(offset + 12, output_pointer);
+		buffer.putInt(offset + 16, execution_time);
+		buffer.putLong(offset + 20, checkpoint_state);
+		buffer.putInt(offset + 28, checkpoint_distance);
+		buffer.putInt(offset + 32, checkpoint_power);
+		buffer.put(offset + 36, last_output);
+		buffer.put(offset + 37, (byte)(illegal ? 1 : 0));
+		buffer.put(offset + 38, (byte)(looping ? 1 : 0));
+		buffer.put(offset + 39, (byte)next_successor);
+		buffer.putInt(offset + 40, memory.length);
+		offset += HEADER_SIZE;
+		buffer.put(offset, instructions, 0, instructions.length);
+		if (instructions.length < length)
+			buffer.put(offset + length - 1, last_instruction);
+		buffer.put(offset + length, memory, 0, memory.length);
+	}
+
+	public static BrainfuckProgram readFrom(ByteBuffer buffer, int offset, int memory_size) {
+		byte[] instructions = new byte[buffer.getInt(offset)];
+		byte[] memory = new byte[buffer.getInt(offset + 40)];
+		buffer.get(offset + HEADER_SIZE, instructions);
+		buffer.get(offset + HEADER_SIZE + instructions.length, memory);
+
+		BrainfuckProgram p = new BrainfuckProgram(instructions, memory, memory_size);
+		p.instruction_pointer = buffer.getInt(offset + 4);
+		p.memory_pointer = buffer.getInt(offset + 8);
+		p.output_pointer = buffer.getInt(offset + 12);
+		p.execution_time = buffer.getInt(offset + 16);
+		p.checkpoint_state = buffer.getLong(offset + 20);
+		p.checkpoint_distance = buffer.getInt(offset + 28);
+		p.checkpoint_power = buffer.getInt(offset + 32);
+		p.last_output = buffer.get(offset + 36);
+		p.illegal = buffer.get(offset + 37) != 0;
+		p.looping = buffer.get(offset + 38) != 0;
+		p.next_successor = buffer.get(offset + 39);
+		return p;
+	}
+
 	@Override
 	public void step() {
 		if (illegal)
 			throw new RuntimeException("program has halted");
 
-		byte instruction = instructions[instruction_pointer++];
+		byte instruction = instruction(instruction_pointer++);
 		
 		//System.out.println(this + " does " + (char)instruction + " while at " + memory_pointer + " in " + Arrays.toString(memory));
 
@@ -98,14 +391,18 @@ public class BrainfuckProgram extends Program {
 			break;
 		case '>':
 			memory_pointer++;
-			if (memory_pointer >= memory.length)
-				illegal = true;
+			if (memory_pointer >= memory.length) {
+				if (memory_pointer >= memory_size)
+					illegal = true;
+				else
+					growMemory(memory_pointer);
+			}
 			break;
 		case 'v':
-			memory[memory_pointer]--;
+			write(memory_pointer, (byte)(memory[memory_pointer] - 1));
 			break;
 		case '^':
-			memory[memory_pointer]++;
+			write(memory_pointer, (byte)(memory[memory_pointer] + 1));
 			break;
 		case '.':
 			last_output = memory[memory_pointer];
@@ -114,74 +411,78 @@ public class BrainfuckProgram extends Program {
 		case '[':
 			if (memory[memory_pointer] == 0) {
 				instruction_pointer = lookupIndexOfMatchingBracketFor(instruction_pointer - 1);
-				if (instruction_pointer < 0 || instruction_pointer >= instructions.length)
+				if (instruction_pointer < 0 || instruction_pointer >= length)
 					illegal = true;
+			} else if (closed_form_loops) {
+				runSimpleLoop(instruction_pointer - 1);
 			}
 			break;
 		case ']':
 			if (memory[memory_pointer] != 0) {
 				instruction_pointer = lookupIndexOfMatchingBracketFor(instruction_pointer - 1);
-				if (instruction_pointer < 0 || instruction_pointer >= instructions.length)
+				if (instruction_pointer < 0 || instruction_pointer >= length)
 					illegal = true;
 			}
 			break;
 		case '@':
 			memory_pointer = memory[memory_pointer];
-			if (memory_pointer < 0 || memory_pointer >= memory.length)
+			if (memory_pointer < 0 || memory_pointer >= memory_size)
 				illegal = true;
+			else if (memory_pointer >= memory.length)
+				growMemory(memory_pointer);
 			break;
 		case '!':
 			instruction_pointer = memory[memory_pointer];
-			if (instruction_pointer < 0 || instruction_pointer >= instructions.length)
+			if (instruction_pointer < 0 || instruction_pointer >= length)
 				illegal = true;
 			break;
 		case '+':
 			if (memory_pointer == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] += memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] + memory[memory_pointer - 1]));
 			break;
 		case '-':
 			if (memory_pointer == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] -= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] - memory[memory_pointer - 1]));
 			break;
 		case '*':
 			if (memory_pointer == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] *= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] * memory[memory_pointer - 1]));
 			break;
 		case '/':
 			if (memory_pointer == 0 || memory[memory_pointer - 1] == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] /= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] / memory[memory_pointer - 1]));
 			break;
 		case '%':
 			if (memory_pointer == 0 || memory[memory_pointer - 1] == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] %= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] % memory[memory_pointer - 1]));
 			break;
 		case '|':
 			if (memory_pointer == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] |= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] | memory[memory_pointer - 1]));
 			break;
 		case '&':
 			if (memory_pointer == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] &= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] & memory[memory_pointer - 1]));
 			break;
 		case 'x':
 			if (memory_pointer == 0)
 				illegal = true;
 			else
-				memory[memory_pointer] ^= memory[memory_pointer - 1];
+				write(memory_pointer, (byte)(memory[memory_pointer] ^ memory[memory_pointer - 1]));
 			break;
 		default:
 			// other characters reserved
@@ -190,44 +491,158 @@ public class BrainfuckProgram extends Program {
 		}
 
 		execution_time++;
+		detectLoop();
 	}
 	
-	public int lookupIndexOfMatchingBracketFor(int i) {
-		for (int[] ab: loop_endpoints) {
-			if (ab[0] == i) return ab[1];
-			if (ab[1] == i) return ab[0];
+	// compiled code for the instructions, once execution_time reaches
+	// compile_threshold; null if not compiled (yet) or not compilable
+	private BrainfuckCompiler.Code compiled = null;
+	private boolean compile_attempted = false;
+	private static volatile int compile_threshold = 1 << 20;
+
+	public static void setCompileThreshold(int execution_time) {
+		compile_threshold = execution_time;
+	}
+
+	public static int compileThreshold() {
+		return compile_threshold;
+	}
+
+	// the complete execution state, for comparing runs
+	String state() {
+		return machineState()+(looping ? " looping" : "")
+			+" checkpoint="+checkpoint_state+"/"+checkpoint_distance+"/"+checkpoint_power;
+	}
+
+	// the execution state apart from loop detection, which sees fewer
+	// states when simple loops are run at once
+	String machineState() {
+		return "ip="+instruction_pointer+" mp="+memory_pointer+" out="+output_pointer+"/"+last_output
+			+" t="+execution_time+(illegal ? " illegal" : "")
+			+" memory="+Arrays.toString(Arrays.copyOf(memory, memory_size))+" hash="+memory_hash;
+	}
+
+	@Override
+	public int step(int max_steps) {
+		if (!compile_attempted && execution_time >= compile_threshold) {
+			compiled = BrainfuckCompiler.compile(this);
+			compile_attempted = true;
+		}
+		if (compiled != null && !illegal)
+			return compiled.run(this, max_steps);
+
+		int t0 = execution_time;
+		while (execution_time - t0 < max_steps && !illegal && !looping) {
+			boolean output = instruction(instruction_pointer) == '.';
+			step();
+			if (output || illegal || finished() || instruction(instruction_pointer) == '.')
+				break;
 		}
-		return -1;
+		return execution_time - t0;
 	}
 
-	public int searchIndexOfMatchingBracketFor(int i) {
-		int bound, direction;
-		if (instructions[i] == '[') {
-			bound = instructions.length - 1;
-			direction = 1;
-		} else {
-			bound = 0;
-			direction = -1;
+	// index of the last '[' found not to start a simple loop
+	private int complex_loop = -1;
+
+	// off only to check runSimpleLoop against stepping
+	private static boolean closed_form_loops = true;
+
+	// a simple loop has only '^', 'v', '<' and '>' in its body, ends up
+	// where it started and changes the cell it tests by one each time
+	// around.  if the loop starting at the '[' at i is one (and stays
+	// within memory), apply all of its iterations at once, as if the
+	// '[' were just stepped and the loop ran until the final ']' fell
+	// through.
+	void runSimpleLoop(int i) {
+		if (i == complex_loop)
+			return;
+		int end = lookupIndexOfMatchingBracketFor(i);
+		if (end < 0)
+			return;
+
+		int offset = 0, min_offset = 0, max_offset = 0;
+		for (int j = i + 1; j < end; j++) {
+			switch (instruction(j)) {
+			case '<':
+				min_offset = Math.min(min_offset, --offset);
+				break;
+			case '>':
+				max_offset = Math.max(max_offset, ++offset);
+				break;
+			case '^':
+			case 'v':
+				break;
+			default:
+				complex_loop = i;
+				return;
+			}
 		}
-		
-		int depth = 0;
-		for (int j = i; direction == 1 ? j <= bound : j >= bound; j += direction) {
-			if (instructions[j] == '[') depth += direction;
-			if (instructions[j] == ']') depth -= direction;
-			if (depth == 0)
-				return j;
+		if (offset != 0) {
+			complex_loop = i;
+			return;
+		}
+		if (memory_pointer + min_offset < 0 || memory_pointer + max_offset >= memory_size)
+			return;
+		if (memory_pointer + max_offset >= memory.length)
+			growMemory(memory_pointer + max_offset);
+
+		int[] deltas = new int[max_offset - min_offset + 1];
+		for (int j = i + 1; j < end; j++) {
+			switch (instruction(j)) {
+			case '<': offset--; break;
+			case '>': offset++; break;
+			case '^': deltas[offset - min_offset]++; break;
+			case 'v': deltas[offset - min_offset]--; break;
+			}
 		}
-		return -1;
+		byte counter_delta = (byte)deltas[-min_offset];
+		if (counter_delta != 1 && counter_delta != -1) {
+			complex_loop = i;
+			return;
+		}
+
+		// iterations until the counter wraps around to zero
+		int counter = memory[memory_pointer] & 0xFF;
+		int k = counter_delta == -1 ? counter : 256 - counter;
+		for (int o = min_offset; o <= max_offset; o++)
+			write(memory_pointer + o, (byte)(memory[memory_pointer + o] + k * deltas[o - min_offset]));
+
+		// each time around, the body and the ']' are stepped, and then
+		// the '[' again except the last time.  the first '[' is counted
+		// by step().
+		int body_length = end - i - 1;
+		execution_time += k*(body_length + 2) - 1;
+		instruction_pointer = end + 1;
+	}
+
+	public int lookupIndexOfMatchingBracketFor(int i) {
+		if (i >= jumps.length)
+			return last_jump;
+		int j = jumps[i];
+		if (j < 0 && i == last_jump)
+			return length - 1;
+		return j;
 	}
 
 	public String toString() {
-		return new String(instructions);
+		return new String(instructions());
 	}
 	
+	// measured in bits
+	private static final int BITS_PER_INSTRUCTION = Util.ilog2(INSTRUCTIONS.length);
+
+	static int codeLength(int instruction_count) {
+		return (instruction_count * BITS_PER_INSTRUCTION + 7) / 8;
+	}
+
+	// the largest number of instructions that fits in code_length
+	public static int maxLength(int code_length) {
+		return code_length * 8 / BITS_PER_INSTRUCTION;
+	}
+
 	@Override
 	public int codeLength() {
-		// measured in bits
-		return (int)Math.ceil(instructions.length * Util.ilog2(INSTRUCTIONS.length) / 8.0);
+		return code_length;
 	}
 	
 	@Override
@@ -237,7 +652,7 @@ public class BrainfuckProgram extends Program {
 	
 	@Override
 	public int memorySize() {
-		return memory.length;
+		return memory_size;
 	}
 
 	@Override
@@ -247,7 +662,7 @@ public class BrainfuckProgram extends Program {
 
 	@Override
 	public boolean finished() {
-		return instruction_pointer == instructions.length;
+		return instruction_pointer == length;
 	}
 
 	@Override
@@ -255,14 +670,19 @@ public class BrainfuckProgram extends Program {
 		return illegal;
 	}
 
+	@Override
+	public boolean looping() {
+		return looping;
+	}
+
 	@Override
 	public int cost() {
 		// those about to output get high priority -- if they fail to be consistent
 		// with the target sequence, they will be discarded and their memory freed
-		if (!finished() && instructions[instruction_pointer] == '.')
+		if (!finished() && instruction(instruction_pointer) == '.')
 			return 0;
 		// having output is a good thing -- likely to get more output
-		return codeLength() - output_pointer + Util.ilog2(execution_time);
+		return code_length - output_pointer + Util.ilog2(execution_time);
 	}
 
 	@Override
@@ -271,32 +691,55 @@ public class BrainfuckProgram extends Program {
 		return last_output;
 	}
 
-	private static final byte[][] complement_pairs = {
-		{ 'v', '^' }, { '<', '>' }, { '+', '-' },
-		{ '*', '/' }, { 'x', 'x' }, { '[', ']' },
-	};
 	@Override
 	public BrainfuckProgram[] successors() {
 		BrainfuckProgram[] ps = new BrainfuckProgram[INSTRUCTIONS.length];
-		instructions: for (int i = 0; i < INSTRUCTIONS.length; i++) {
-			byte b = INSTRUCTIONS[i];
-
-			if (instructions.length > 0) {
-				// prune some pointless branches
-				// (due to overflow, truncation and instruction pointer
-				// teleportation, these aren't always pointless, but meh)
-				byte a = instructions[instructions.length - 1];
-				for (byte[] complements: complement_pairs) {
-					if (b == complements[0] && a == complements[1] ||
-					    b == complements[1] && a == complements[0])
-						continue instructions;
-				}
-			}
-			
-			ps[i] = new BrainfuckProgram(this, b);
+		long allowed = PruningAutomaton.allowed(automaton_state);
+		for (int i = 0; i < INSTRUCTIONS.length; i++) {
+			if ((allowed >>> i & 1) != 0)
+				ps[i] = new BrainfuckProgram(this, INSTRUCTIONS[i]);
 		}
 		return ps;
 	}
+
+	// index into INSTRUCTIONS of the next successor to be generated
+	private int next_successor = 0;
+
+	@Override
+	public BrainfuckProgram nextSuccessor() {
+		skipPrunedSuccessors();
+		if (next_successor == INSTRUCTIONS.length)
+			return null;
+		return new BrainfuckProgram(this, INSTRUCTIONS[next_successor++]);
+	}
+
+	@Override
+	public int nextSuccessorCost() {
+		skipPrunedSuccessors();
+		if (next_successor == INSTRUCTIONS.length)
+			return Integer.MAX_VALUE;
+		// same as cost() of the successor
+		byte next_instruction = finished() ? INSTRUCTIONS[next_successor] : instruction(instruction_pointer);
+		if (next_instruction == '.')
+			return 0;
+		return codeLength(length + 1) - output_pointer + Util.ilog2(execution_time);
+	}
+
+	// if the next successor fits in xs and SiblingBatch finds that it
+	// fails on its first step toward xs, skip it and return true
+	public boolean skipDoomedSuccessor(byte[] xs) {
+		skipPrunedSuccessors();
+		if (next_successor == INSTRUCTIONS.length || codeLength(length + 1) > xs.length
+		    || (SiblingBatch.doomed(this, xs) >>> next_successor & 1) == 0)
+			return false;
+		next_successor++;
+		return true;
+	}
+
+	private void skipPrunedSuccessors() {
+		long remaining = PruningAutomaton.allowed(automaton_state) >>> next_successor;
+		next_successor = remaining == 0 ? INSTRUCTIONS.length : next_successor + Long.numberOfTrailingZeros(remaining);
+	}
 	
 
 	public static void testProgram(String code, int memory_size, byte[] expected_output) {
@@ -312,6 +755,103 @@ public class BrainfuckProgram extends Program {
 		}
 	}
 
+	// run the program without output for a while and check whether it
+	// has been found to loop
+	public static void testLooping(String code, int memory_size, boolean expected) {
+		Program program = new BrainfuckProgram(code.getBytes(), memory_size);
+		while (!program.finished() && !program.illegal() && !program.looping() && program.executionTime() < 100000)
+			program.step();
+		if (program.looping() != expected) {
+			System.err.println("program: "+code);
+			System.err.println("expected "+(expected ? "" : "not ")+"to be found looping");
+			System.exit(1);
+		}
+	}
+
+	// run the program and check whether it ends up illegal, and that its
+	// tape has grown no longer than max_tape_size
+	public static void testTape(String code, int memory_size, boolean illegal, int max_tape_size) {
+		BrainfuckProgram program = new BrainfuckProgram(code.getBytes(), memory_size);
+		while (!program.finished() && !program.illegal() && !program.looping())
+			program.step();
+		if (program.illegal() != illegal || program.memory.length > max_tape_size || program.memorySize() != memory_size) {
+			System.err.println("program: "+code+" with "+memory_size+" cells of memory");
+			System.err.println("expected "+(illegal ? "" : "not ")+"to end up illegal, with a tape of at most "+max_tape_size);
+			System.err.println(program.state());
+			System.exit(1);
+		}
+	}
+
+	// run random programs, most of them with simple loops, with and
+	// without running the loops at once, and compare the states whenever
+	// the execution times meet
+	public static void testSimpleLoops(long seed, int count) {
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			StringBuilder code = new StringBuilder();
+			randomCode(random, code, 0);
+			int memory_size = 1 + random.nextInt(16);
+			BrainfuckProgram p = new BrainfuckProgram(code.toString().getBytes(), memory_size),
+			                 q = new BrainfuckProgram(code.toString().getBytes(), memory_size);
+			while (!p.finished() && !p.illegal() && p.executionTime() < 20000) {
+				p.step();
+				closed_form_loops = false;
+				try {
+					while (q.executionTime() < p.executionTime() && !q.finished() && !q.illegal())
+						q.step();
+				} finally {
+					closed_form_loops = true;
+				}
+				if (!p.machineState().equals(q.machineState())) {
+					System.err.println("program: "+code+" with "+memory_size+" cells of memory (seed "+seed+")");
+					System.err.println("closed form: "+p.machineState());
+					System.err.println("stepwise:    "+q.machineState());
+					System.exit(1);
+				}
+			}
+		}
+	}
+
+	// a few instructions and loops, nested up to depth 2
+	private static void randomCode(Random random, StringBuilder code, int depth) {
+		int n = random.nextInt(6);
+		for (int i = 0; i < n; i++) {
+			if (depth < 2 && random.nextInt(4) == 0) {
+				code.append('[');
+				if (random.nextInt(4) == 0)
+					randomCode(random, code, depth + 1);
+				else
+					simpleLoopBody(random, code);
+				code.append(']');
+			} else {
+				code.append("^^^v<>>.".charAt(random.nextInt(8)));
+			}
+		}
+	}
+
+	// moves and increments that end where they started and change the
+	// cell there by one
+	private static void simpleLoopBody(Random random, StringBuilder code) {
+		int offset = 0, counter_delta = 0;
+		for (int n = random.nextInt(8); n > 0; n--) {
+			char c = "<>^v".charAt(random.nextInt(4));
+			code.append(c);
+			if (c == '<') offset--;
+			if (c == '>') offset++;
+			if (offset == 0 && c == '^') counter_delta++;
+			if (offset == 0 && c == 'v') counter_delta--;
+		}
+		for (; offset < 0; offset++)
+			code.append('>');
+		for (; offset > 0; offset--)
+			code.append('<');
+		int target = random.nextBoolean() ? 1 : -1;
+		for (; counter_delta < target; counter_delta++)
+			code.append('^');
+		for (; counter_delta > target; counter_delta--)
+			code.append('v');
+	}
+
 	public static void test() {
 		assert(new BrainfuckProgram(new BrainfuckProgram("12345".getBytes(), 0), (byte)']').illegal());
 
@@ -321,5 +861,26 @@ public class BrainfuckProgram extends Program {
 		            "Hello World!\n".getBytes());
 		testProgram("^^>^[.*]", 2,
 		            new byte[]{ 1, 2, 4, 8, 16, 32, 64, -128 });
+
+		testLooping("^[]", 1, true);
+		testLooping("^[>^<]", 2, true);
+		testLooping("^[>^[>^<]<]", 3, true);
+		testLooping("^[>^<v]", 2, false);
+		testLooping("^^^^[>^^^^^^^^[>^<v]<v]", 3, false);
+		// only cell 0 changes from one time around to the next
+		testLooping("^^[^^]", 1, false);
+		testLooping("^^^v[><^^]", 17, false);
+
+		// bounds are those of memory_size however long the tape is
+		String right = new String(new char[99]).replace('\0', '>');
+		testTape(right+"^.", 100, false, 100);
+		testTape(right+">", 100, true, 100);
+		testTape("^^^^^^^^^^[>^^^^^^^^^^<v]>@^.", 101, false, 101);
+		testTape("^^^^^^^^^^[>^^^^^^^^^^<v]>@", 100, true, 8);
+		testTape("^^^^[>>>>>>>>>^<<<<<<<<<v]", 10, false, 16);
+		testTape("^^^^[>>>>>>>>>^<<<<<<<<<v]", 9, true, 9);
+		testTape("^^^.", 256, false, 8);
+
+		testSimpleLoops(1, 2000);
 	}
 }
@@ -0,0 +1,226 @@
+import java.util.function.ObjIntConsumer;
+
+// one FIFO per key.  the key is not looked at again after an element is
+// added, so it should be recomputed (by adding the element anew)
+// whenever the element's state changes.  keys may be negative; the
+// bucket array only covers the range of keys that has actually occurred
+// and is grown on demand.
+public class BucketQueue<E> implements Frontier<E> {
+	// a FIFO like ArrayDeque's, that can also be read by index
+	private static class Bucket<E> {
+		private Object[] elements = new Object[16];
+		private int head = 0, size = 0;
+
+		int size() {
+			return size;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void addLast(E e) {
+			if (size == elements.length) {
+				Object[] grown = new Object[2 * size];
+				System.arraycopy(elements, head, grown, 0, size - head);
+				System.arraycopy(elements, 0, grown, size - head, head);
+				elements = grown;
+				head = 0;
+			}
+			elements[(head + size++) & (elements.length - 1)] = e;
+		}
+
+		@SuppressWarnings("unchecked")
+		E get(int i) {
+			return (E)elements[(head + i) & (elements.length - 1)];
+		}
+
+		E peekFirst() {
+			return size == 0 ? null : get(0);
+		}
+
+		E pollFirst() {
+			if (size == 0)
+				return null;
+			E e = get(0);
+			elements[head] = null;
+			head = (head + 1) & (elements.length - 1);
+			size--;
+			return e;
+		}
+	}
+
+	private Bucket<E>[] buckets;
+	private int offset; // key of buckets[0]
+	private int min; // no nonempty buckets below this index
+	private int size = 0;
+
+	// for visitLater(): the buckets as they were, indexed from
+	// visit_offset, with how many of the elements they had are still at
+	// their heads and how many of those have been visited all the same.
+	// visitor is null when there is no visit going on.
+	private Bucket<E>[] visit_buckets;
+	private int[] visit_remaining, visit_visited;
+	private int visit_offset, visit_next, visit_left;
+	private ObjIntConsumer<? super E> visitor = null;
+
+	public BucketQueue() {
+		buckets = newBuckets(16);
+		offset = 0;
+		min = buckets.length;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void add(E e, int key) {
+		int i = key - offset;
+		if (i < 0 || i >= buckets.length) {
+			cover(key);
+			i = key - offset;
+		}
+		Bucket<E> bucket = buckets[i];
+		if (bucket == null)
+			bucket = buckets[i] = new Bucket<E>();
+		bucket.addLast(e);
+		if (i < min)
+			min = i;
+		size++;
+	}
+
+	// key of the head, or Integer.MAX_VALUE if empty
+	@Override
+	public int peekKey() {
+		if (size == 0)
+			return Integer.MAX_VALUE;
+		advance();
+		return min + offset;
+	}
+
+	// the head may be changed in place by the caller, so a visit
+	// takes it first
+	@Override
+	public E peek() {
+		if (size == 0)
+			return null;
+		advance();
+		if (visitor != null)
+			visitHead(min, false);
+		return buckets[min].peekFirst();
+	}
+
+	@Override
+	public E poll() {
+		if (size == 0)
+			return null;
+		advance();
+		if (visitor != null)
+			visitHead(min, true);
+		size--;
+		return buckets[min].pollFirst();
+	}
+
+	// visit the elements with their keys in queue order
+	public void forEach(ObjIntConsumer<? super E> action) {
+		for (int i = min; i < buckets.length; i++) {
+			if (buckets[i] == null)
+				continue;
+			for (int j = 0; j < buckets[i].size(); j++)
+				action.accept(buckets[i].get(j), i + offset);
+		}
+	}
+
+	// like forEach, but over calls to visitSome, between which the queue
+	// may change: the elements are visited as they are now, and in queue
+	// order within each key.  an element is visited when it is peeked at
+	// or polled if it hasn't been yet, so that its state is that of now
+	// even if the caller changes it then.  starting anew drops a visit
+	// that hasn't finished.
+	public void visitLater(ObjIntConsumer<? super E> action) {
+		visit_buckets = buckets.clone();
+		visit_remaining = new int[buckets.length];
+		visit_visited = new int[buckets.length];
+		for (int i = min; i < buckets.length; i++)
+			if (buckets[i] != null)
+				visit_remaining[i] = buckets[i].size();
+		visit_offset = offset;
+		visit_next = min;
+		visit_left = size;
+		visitor = action;
+	}
+
+	// visit up to about n more elements; returns whether all have been,
+	// which ends the visit
+	public boolean visitSome(int n) {
+		for (; n > 0 && visit_left > 0; visit_next++) {
+			int i = visit_next;
+			if (visit_remaining[i] == visit_visited[i])
+				continue;
+			int k = Math.min(n, visit_remaining[i] - visit_visited[i]);
+			for (int j = visit_visited[i]; j < visit_visited[i] + k; j++)
+				visitor.accept(visit_buckets[i].get(j), i + visit_offset);
+			visit_visited[i] += k;
+			visit_left -= k;
+			n -= k;
+			if (visit_remaining[i] != visit_visited[i])
+				break;
+		}
+		if (visit_left > 0)
+			return false;
+		visit_buckets = null;
+		visit_remaining = visit_visited = null;
+		visitor = null;
+		return true;
+	}
+
+	// before the head of buckets[i] is peeked at or polled
+	private void visitHead(int i, boolean poll) {
+		int j = i + offset - visit_offset;
+		if (j < 0 || j >= visit_buckets.length || visit_remaining[j] == 0)
+			return;
+		if (visit_visited[j] == 0) {
+			visitor.accept(buckets[i].peekFirst(), i + offset);
+			visit_visited[j] = 1;
+			visit_left--;
+		}
+		if (poll) {
+			visit_remaining[j]--;
+			visit_visited[j]--;
+		}
+	}
+
+	// move min up to the first nonempty bucket; only call if size > 0
+	private void advance() {
+		while (buckets[min] == null || buckets[min].isEmpty())
+			min++;
+	}
+
+	// grow the bucket array so that it covers key
+	private void cover(int key) {
+		int lo = Math.min(offset, key), hi = Math.max(offset + buckets.length, key + 1);
+		int length = buckets.length;
+		while (length < hi - lo)
+			length *= 2;
+		// leave some slack on the side that needed growing
+		int new_offset = key < offset ? hi - length : lo;
+
+		Bucket<E>[] new_buckets = newBuckets(length);
+		System.arraycopy(buckets, 0, new_buckets, offset - new_offset, buckets.length);
+		min += offset - new_offset;
+		buckets = new_buckets;
+		offset = new_offset;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> Bucket<E>[] newBuckets(int length) {
+		return (Bucket<E>[])new Bucket<?>[length];
+	}
+}
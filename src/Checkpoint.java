@@ -0,0 +1,273 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.ObjIntConsumer;
+
+// the state of a Compressor's search between two rounds: the input, the
+// step and expansion counters, and both queues with their keys.  the
+// queues are captured over later rounds, a slice at a time, with
+// BucketQueue.visitLater: a program the search is about to take up is
+// captured first, so the checkpoint holds the queues as they were when
+// it was started.  once capture() reports it complete it can be written
+// out while the search goes on: finished programs change only in their
+// next successor, so they are captured by reference along with that;
+// unfinished ones are copied, sharing memory copy-on-write.  no one call
+// takes time in proportion to the number of queued programs (see
+// Benchmark.checkpoint).
+public class Checkpoint {
+	private static final int MAGIC = 0x62666370, // "bfcp"
+	                         VERSION = 2;
+	private static final int CHUNK = 4096;
+
+	private final Compressor.Scheduler scheduler;
+	private final byte[] xs;
+	private final int memory_size;
+	private final long steps;
+	private final int expansions;
+	// active programs and those to be extrapolated, each in queue order
+	// within a key
+	private final Programs[] programs = { new Programs(), new Programs() };
+	// the queues that are still being captured
+	private BucketQueue<Program> ps, to_be_extrapolated;
+
+	// programs with their keys and next successors, in chunks so that
+	// capturing never allocates or copies more than a chunk at a time
+	private static class Programs implements ObjIntConsumer<Program> {
+		final List<BrainfuckProgram[]> programs = new ArrayList<BrainfuckProgram[]>();
+		final List<int[]> keys = new ArrayList<int[]>(), next_successors = new ArrayList<int[]>();
+		int size = 0;
+
+		@Override
+		public void accept(Program p, int key) {
+			BrainfuckProgram q = (BrainfuckProgram)p;
+			int i = size % CHUNK;
+			if (i == 0) {
+				programs.add(new BrainfuckProgram[CHUNK]);
+				keys.add(new int[CHUNK]);
+				next_successors.add(new int[CHUNK]);
+			}
+			programs.get(size / CHUNK)[i] = q.finished() ? q : q.snapshot();
+			keys.get(size / CHUNK)[i] = key;
+			next_successors.get(size / CHUNK)[i] = q.nextSuccessorIndex();
+			size++;
+		}
+
+		BrainfuckProgram program(int i) {
+			return programs.get(i / CHUNK)[i % CHUNK];
+		}
+
+		int key(int i) {
+			return keys.get(i / CHUNK)[i % CHUNK];
+		}
+
+		int nextSuccessor(int i) {
+			return next_successors.get(i / CHUNK)[i % CHUNK];
+		}
+	}
+
+	private Checkpoint(Compressor.Scheduler scheduler, byte[] xs, int memory_size, long steps, int expansions) {
+		this.scheduler = scheduler;
+		this.xs = xs;
+		this.memory_size = memory_size;
+		this.steps = steps;
+		this.expansions = expansions;
+	}
+
+	// start capturing the search as it is now; the queues must then be
+	// left to capture() until it is done
+	public static Checkpoint start(Compressor.Scheduler scheduler, byte[] xs, int memory_size, long steps, int expansions,
+	                               BucketQueue<Program> ps, BucketQueue<Program> to_be_extrapolated) {
+		Checkpoint checkpoint = new Checkpoint(scheduler, xs.clone(), memory_size, steps, expansions);
+		checkpoint.ps = ps;
+		checkpoint.to_be_extrapolated = to_be_extrapolated;
+		ps.visitLater(checkpoint.programs[0]);
+		to_be_extrapolated.visitLater(checkpoint.programs[1]);
+		return checkpoint;
+	}
+
+	// capture up to about n more programs; returns whether the checkpoint
+	// is complete, after which it may be written
+	public boolean capture(int n) {
+		if (ps != null && ps.visitSome(n))
+			ps = null;
+		else if (ps == null && to_be_extrapolated != null && to_be_extrapolated.visitSome(n))
+			to_be_extrapolated = null;
+		return ps == null && to_be_extrapolated == null;
+	}
+
+	public Compressor.Scheduler scheduler() {
+		return scheduler;
+	}
+
+	public byte[] sequence() {
+		return xs;
+	}
+
+	public int memorySize() {
+		return memory_size;
+	}
+
+	public long steps() {
+		return steps;
+	}
+
+	public int expansions() {
+		return expansions;
+	}
+
+	// add the programs to the given (empty) queues; only for checkpoints
+	// that have been read back
+	public void restore(Frontier<Program> ps, Frontier<Program> to_be_extrapolated) {
+		for (int j = 0; j < programs[0].size; j++)
+			ps.add(programs[0].program(j), programs[0].key(j));
+		for (int j = 0; j < programs[1].size; j++)
+			to_be_extrapolated.add(programs[1].program(j), programs[1].key(j));
+	}
+
+	// write to a temporary file next to file, then move it into place,
+	// so that file always holds a complete checkpoint
+	public void write(File file) throws IOException {
+		File temporary = new File(file.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(scheduler.ordinal());
+			out.writeInt(xs.length);
+			out.write(xs);
+			out.writeInt(memory_size);
+			out.writeLong(steps);
+			out.writeInt(expansions);
+			byte[] bytes = new byte[0];
+			for (int i = 0; i < 2; i++) {
+				out.writeInt(programs[i].size);
+				for (int j = 0; j < programs[i].size; j++) {
+					BrainfuckProgram p = programs[i].program(j);
+					int size = p.serializedSize();
+					if (bytes.length < size)
+						bytes = new byte[size];
+					p.writeTo(ByteBuffer.wrap(bytes), 0, programs[i].nextSuccessor(j));
+					out.writeInt(programs[i].key(j));
+					out.writeInt(size);
+					out.write(bytes, 0, size);
+				}
+			}
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static Checkpoint read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file+" is not a checkpoint");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException(file+" is a checkpoint of unsupported version "+version);
+			Compressor.Scheduler scheduler = Compressor.Scheduler.values()[in.readInt()];
+			byte[] xs = new byte[in.readInt()];
+			in.readFully(xs);
+			int memory_size = in.readInt();
+			long steps = in.readLong();
+			int expansions = in.readInt();
+			Checkpoint checkpoint = new Checkpoint(scheduler, xs, memory_size, steps, expansions);
+			byte[] bytes = new byte[0];
+			for (int i = 0; i < 2; i++) {
+				int n = in.readInt();
+				for (int j = 0; j < n; j++) {
+					int key = in.readInt();
+					int size = in.readInt();
+					if (bytes.length < size)
+						bytes = new byte[size];
+					in.readFully(bytes, 0, size);
+					checkpoint.programs[i].accept(BrainfuckProgram.readFrom(ByteBuffer.wrap(bytes), 0, memory_size), key);
+				}
+			}
+			return checkpoint;
+		}
+	}
+
+	// interrupt a search, resume it from its last checkpoint, and check
+	// that it ends the same way and after as many steps as without
+	// interruption
+	public static void test() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 1, 2, 4, 8, 16 },
+		};
+		for (byte[] xs: xss) {
+			try {
+				File file = File.createTempFile("checkpoint", ".bin");
+				Compressor uninterrupted = new Compressor();
+				Program p = uninterrupted.compress(xs);
+
+				final long stop = uninterrupted.steps() / 2;
+				Compressor interrupted = new Compressor() {
+					@Override
+					protected boolean abandon(long steps) {
+						return steps > stop;
+					}
+				};
+				interrupted.setCheckpointing(file, 0);
+				interrupted.compress(xs);
+
+				Compressor resumed = new Compressor();
+				long resumed_from = Checkpoint.read(file).steps();
+				Program q = resumed.resume(file);
+				file.delete();
+
+				if (resumed_from == 0 || !String.valueOf(p).equals(String.valueOf(q)) || resumed.steps() != uninterrupted.steps()) {
+					System.err.println("sequence: "+Arrays.toString(xs));
+					System.err.println("uninterrupted: "+p+" after "+uninterrupted.steps()+" steps");
+					System.err.println("resumed:       "+q+" after "+resumed.steps()+" steps, from "+resumed_from);
+					System.exit(1);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// capture in slices while the head is expanded in place and put
+		// back, as the search does, and check that the queue is captured
+		// as it was at the start
+		BucketQueue<Program> ps = new BucketQueue<Program>(), to_be_extrapolated = new BucketQueue<Program>();
+		for (Program p: Benchmark.frontier(3, 8))
+			if (p.finished())
+				ps.add(p, p.nextSuccessorCost());
+		final Map<Integer, List<String>> expected = new TreeMap<Integer, List<String>>();
+		ps.forEach(new ObjIntConsumer<Program>() {
+			@Override
+			public void accept(Program p, int key) {
+				add(expected, key, p+" "+((BrainfuckProgram)p).nextSuccessorIndex());
+			}
+		});
+		Checkpoint checkpoint = start(Compressor.Scheduler.TIME_SLICED, new byte[0], 8, 0, 0, ps, to_be_extrapolated);
+		int slices = 0;
+		do {
+			for (int i = 0; i < 64 && !ps.isEmpty(); i++) {
+				Program p = ps.peek();
+				p.nextSuccessor();
+				ps.poll();
+				if (p.nextSuccessorCost() != Integer.MAX_VALUE)
+					ps.add(p, p.nextSuccessorCost());
+			}
+			slices++;
+		} while (!checkpoint.capture(100));
+		Map<Integer, List<String>> captured = new TreeMap<Integer, List<String>>();
+		Programs programs = checkpoint.programs[0];
+		for (int j = 0; j < programs.size; j++)
+			add(captured, programs.key(j), programs.program(j)+" "+programs.nextSuccessor(j));
+		if (slices < 2 || !captured.equals(expected)) {
+			System.err.println("captured in "+slices+" slices:");
+			System.err.println("expected "+expected);
+			System.err.println("captured "+captured);
+			System.exit(1);
+		}
+	}
+
+	private static void add(Map<Integer, List<String>> programs, int key, String program) {
+		List<String> bucket = programs.get(key);
+		if (bucket == null)
+			programs.put(key, bucket = new ArrayList<String>());
+		bucket.add(program);
+	}
+}
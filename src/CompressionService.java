@@ -0,0 +1,211 @@
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+// compresses sequences asynchronously, each request with its own
+// deadline, step budget and memory budget.  every search runs on a thread
+// of its own (a virtual thread where the JVM has them) and checks its
+// budgets and for cancellation between rounds.  a search that runs out of
+// time or steps, or finds nothing, still yields a result: the program
+// that got furthest along the sequence, with the rest as literal bytes.
+public class CompressionService {
+	public static class Result {
+		// program outputs the first prefix_length bytes of the sequence
+		// and literal the rest.  program is null if prefix_length is 0.
+		public final Program program;
+		public final int prefix_length;
+		public final byte[] literal;
+		// whether program is a decompressor found by a full search
+		public final boolean complete;
+		public final long steps;
+
+		Result(Program program, int prefix_length, byte[] literal, boolean complete, long steps) {
+			this.program = program;
+			this.prefix_length = prefix_length;
+			this.literal = literal;
+			this.complete = complete;
+			this.steps = steps;
+		}
+
+		// in bytes, counting one per instruction
+		public int size() {
+			return (program == null ? 0 : program.toString().length()) + literal.length;
+		}
+
+		// the sequence back, or null if program doesn't output its prefix
+		public byte[] decompress() {
+			// with as much memory as the search gave it
+			byte[] xs = new byte[prefix_length + literal.length];
+			if (prefix_length > 0) {
+				Program p = new BrainfuckProgram(program.toString().getBytes(), xs.length);
+				while (p.outputLength() < prefix_length && !p.finished() && !p.illegal() && !p.looping()) {
+					int k = p.outputLength();
+					p.step(Integer.MAX_VALUE);
+					if (p.outputLength() > k)
+						xs[k] = p.lastOutput();
+				}
+				if (p.outputLength() < prefix_length)
+					return null;
+			}
+			System.arraycopy(literal, 0, xs, prefix_length, literal.length);
+			return xs;
+		}
+
+		@Override
+		public String toString() {
+			return (complete ? "" : "partial ")+program+" for "+prefix_length+" bytes + "+literal.length+" literal bytes after "+steps+" steps";
+		}
+	}
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	// thread_count bounds the number of searches that run at once if
+	// there are no virtual threads
+	public CompressionService(int thread_count) {
+		ExecutorService executor = virtualThreadExecutor();
+		this.virtual = executor != null;
+		this.executor = executor != null ? executor : Executors.newFixedThreadPool(thread_count, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "compression");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// through reflection, so as to build and run on JVMs before 21
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	public boolean usesVirtualThreads() {
+		return virtual;
+	}
+
+	// the search for xs gives up max_millis after this call, or after
+	// max_steps steps; memory_budget is in bytes of queued programs, and
+	// 0 for none.  cancelling the future interrupts the search.
+	public Future<Result> submit(byte[] xs, long max_millis, long max_steps, long memory_budget) {
+		final BudgetedCompressor c = new BudgetedCompressor(xs.clone(), System.nanoTime() + max_millis * 1000000, max_steps);
+		if (memory_budget > 0)
+			c.setMemoryBudget(memory_budget);
+		return executor.submit(new Callable<Result>() {
+			@Override
+			public Result call() {
+				return c.run();
+			}
+		});
+	}
+
+	private static class BudgetedCompressor extends Compressor {
+		private final byte[] xs;
+		private final long deadline, max_steps;
+		// the first program to output the longest prefix of xs so far.
+		// programs are visited in order of cost, so it is about the
+		// cheapest to do so.
+		private Program best = null;
+		private int best_length = 0;
+
+		BudgetedCompressor(byte[] xs, long deadline, long max_steps) {
+			this.xs = xs;
+			this.deadline = deadline;
+			this.max_steps = max_steps;
+		}
+
+		@Override
+		protected void visited(Program p) {
+			if (p.outputLength() > best_length && p.incrementallyConsistentWith(xs)) {
+				best = ((BrainfuckProgram)p).snapshot();
+				best_length = p.outputLength();
+			}
+		}
+
+		@Override
+		protected boolean abandon(long steps) {
+			return steps > max_steps || System.nanoTime() > deadline || Thread.currentThread().isInterrupted();
+		}
+
+		Result run() {
+			Program p = compress(xs);
+			if (p != null)
+				return new Result(p, xs.length, new byte[0], true, steps());
+			// a prefix program no shorter than its prefix isn't worth it
+			if (best != null && best.toString().length() >= best_length) {
+				best = null;
+				best_length = 0;
+			}
+			return new Result(best, best_length, Arrays.copyOfRange(xs, best_length, xs.length), false, steps());
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	// complete results must match Compressor's, and partial ones must
+	// come back soon after their deadline and still decompress
+	public static void test() {
+		CompressionService service = new CompressionService(4);
+		byte[] hard = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, -7, 42, 19, 88, -100, 3, 61, -29 };
+		// the deadline counts from submission, so the one with a
+		// deadline goes first
+		byte[][] xss = {
+			hard,
+			hard,
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 1, 2, 4, 8, 16 },
+			{ 0, 0, 1, 1 },
+			{ 3, 3, 3, 3 },
+			{},
+		};
+		long[] max_millis = { 1000, 60000, 60000, 60000, 60000, 60000, 60000 };
+		long[] max_steps = { Long.MAX_VALUE, 100000, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		long[] memory_budgets = { 0, 0, 0, 64 << 20, 0, 0, 0 };
+
+		long t0 = System.nanoTime();
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < xss.length; i++)
+			futures.add(service.submit(xss[i], max_millis[i], max_steps[i], memory_budgets[i]));
+		for (int i = 0; i < xss.length; i++) {
+			Result r;
+			try {
+				r = futures.get(i).get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+			Program p = xss[i] == hard ? null : new Compressor().compress(xss[i]);
+			if (!Arrays.equals(r.decompress(), xss[i]) || r.complete != (p != null)
+			    || p != null && !p.toString().equals(r.program.toString())
+			    || xss[i] == hard && (r.prefix_length < 12 || r.size() >= hard.length)
+			    || max_steps[i] != Long.MAX_VALUE && r.steps > 2 * max_steps[i]) {
+				System.err.println("sequence: "+Arrays.toString(xss[i]));
+				System.err.println("service:  "+r);
+				System.err.println("compress: "+p);
+				System.exit(1);
+			}
+		}
+		long millis = (System.nanoTime() - t0) / 1000000;
+
+		// a cancelled search must stop
+		Future<Result> cancelled = service.submit(hard, 60000, Long.MAX_VALUE, 0);
+		cancelled.cancel(true);
+		service.shutdown();
+		boolean terminated;
+		try {
+			terminated = service.executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (millis > 20000 || !terminated) {
+			System.err.println("compression service took "+millis+" ms, terminated: "+terminated);
+			System.exit(1);
+		}
+	}
+}
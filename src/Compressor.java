@@ -1,9 +1,154 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Compressor {
 	private static final int MAX_ACTIVE_PROGRAM_COUNT = 200000,
 	                         BRANCHING_FACTOR = BrainfuckProgram.INSTRUCTIONS.length;
 
+	public enum Scheduler {
+		// dequeue a program, step it once and enqueue it again
+		STEPWISE,
+		// let a dequeued program keep running for as long as it would be
+		// dequeued again right away.  visits programs in the same order
+		// as STEPWISE, but saves the queue round trip on most steps.
+		TIME_SLICED,
+		// levin search in phases, keeping only the programs on the
+		// current path rather than a queue.  finds the program of
+		// least codeLength() + ilog2(executionTime()), which at the
+		// time it outputs xs is the least cost(), but spends
+		// exponentially more steps doing so.
+		PHASED,
+	}
+
+	private final Scheduler scheduler;
+
+	// if nonzero, queued programs are kept off-heap in an arena of at
+	// most this many bytes
+	private long memory_budget = 0;
+
+	public Compressor() {
+		this(Scheduler.TIME_SLICED);
+	}
+
+	public Compressor(Scheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public void setMemoryBudget(long bytes) {
+		this.memory_budget = bytes;
+	}
+
+	// if set, each queue keeps at most max_in_memory programs on the
+	// heap and spills the rest to segment files in this directory.  not
+	// to be combined with a memory budget.
+	private File spill_directory = null;
+	private int max_in_memory;
+	private String spill_statistics = null;
+
+	public void setSpilling(File directory, int max_in_memory) {
+		this.spill_directory = directory;
+		this.max_in_memory = max_in_memory;
+	}
+
+	// sizes and I/O throughput of the queues of the last spilling search
+	public String spillStatistics() {
+		return spill_statistics;
+	}
+
+	// if set, the successors of a finished program that fail on their
+	// first step are ruled out using SiblingBatch rather than constructed
+	// and stepped: all at once by the PHASED scheduler, and one per round
+	// by the others.  steps are counted as if each had been stepped, but
+	// visited() is not called for them.
+	private boolean batched_siblings = true;
+
+	public void setBatchedSiblings(boolean batched_siblings) {
+		this.batched_siblings = batched_siblings;
+	}
+
+	// if set, finished programs are dropped when a program of no higher
+	// cost has already finished in the same state.  this is a heuristic:
+	// the state says nothing about the code length and execution time
+	// of the program that reached it, nor about its code, which '!' can
+	// jump back into, so it may cost the best solution.  the table may be
+	// shared between searches for the same sequence, but not between
+	// sequences: entries are not keyed by the sequence, so a state reached
+	// on the way to one would drop programs searched for another.
+	private TranspositionTable transpositions = null;
+
+	public void setTranspositionTable(TranspositionTable table) {
+		this.transpositions = table;
+	}
+
+	public TranspositionTable transpositionTable() {
+		return transpositions;
+	}
+
+	// if set, compress() looks up sequences in this cache before
+	// searching and adds what it finds.  the cache may be shared
+	// between compressors, but should only be shared between those that
+	// would find the same decompressors.
+	private ResultCache results = null;
+	private boolean warm_start = false;
+
+	public void setResultCache(ResultCache results) {
+		this.results = results;
+	}
+
+	public ResultCache resultCache() {
+		return results;
+	}
+
+	// if set, searches start from the cached decompressor of the longest
+	// prefix of the sequence.  this is a heuristic: it finds some
+	// decompressor quickly if the cached one extends well, but not
+	// necessarily the best one.
+	public void setWarmStart(boolean warm_start) {
+		this.warm_start = warm_start;
+	}
+
+	// if set, searches (under any scheduler, and those of sessions) keep
+	// SearchStatistics and pass them to the listener every
+	// STATISTICS_ROUNDS rounds and at the end.  they are also kept while
+	// JFR is recording the events of SearchStatistics.
+	private SearchListener listener = null;
+	private static final int STATISTICS_ROUNDS = 4096; // a multiple of SearchStatistics.SAMPLE_INTERVAL
+
+	public void setListener(SearchListener listener) {
+		this.listener = listener;
+	}
+
+	// if set, a Checkpoint of the search is taken every
+	// checkpoint_interval milliseconds and written to checkpoint_file in
+	// the background.  only for the in-memory queues; the transposition
+	// table is not part of the checkpoint.
+	private File checkpoint_file = null;
+	private long checkpoint_interval;
+	// rounds between looks at the clock, and between slices of a capture
+	static final int CHECKPOINT_ROUNDS = 64;
+	static final int CAPTURE_PROGRAMS = 1024; // programs per slice
+
+	private long next_checkpoint;
+	private ExecutorService checkpoint_writer;
+	private Future<?> checkpoint_pending;
+	// the checkpoint being captured, if any
+	private Checkpoint capturing;
+
+	public void setCheckpointing(File file, long interval_millis) {
+		this.checkpoint_file = file;
+		this.checkpoint_interval = interval_millis;
+	}
+
+	// continue the search saved in the given checkpoint file
+	public Program resume(File file) throws IOException {
+		Checkpoint checkpoint = Checkpoint.read(file);
+		if (checkpoint.scheduler() != scheduler)
+			throw new IllegalArgumentException("checkpoint was taken under the "+checkpoint.scheduler()+" scheduler");
+		return search(null, checkpoint, checkpoint.sequence());
+	}
+
 	// find (if exists) a program of length at most as many bytes as
 	// the input, that has xs as a prefix of its output, and that
 	// outputs this prefix within 2^xs.length execution steps.
@@ -12,55 +157,123 @@ public class Compressor {
 	}
 
 	public Program compress(byte[] xs, int a, int b) {
-		PriorityQueue<Program> to_be_extrapolated = new PriorityQueue<Program>(MAX_ACTIVE_PROGRAM_COUNT*BRANCHING_FACTOR);
-		PriorityQueue<Program> ps = new PriorityQueue<Program>(MAX_ACTIVE_PROGRAM_COUNT);
+		if (results != null)
+			return compressCached(xs, b-a);
+		// start with the empty program
+		// (I don't think a better-than-nothing decompressor
+		// should need more memory than the length of the
+		// sequence it represents, but I haven't proven it)
+		return search(new BrainfuckProgram(b-a), xs);
+	}
 
-		try {
-			// start with the empty program
-			// (I don't think a better-than-nothing decompressor
-			// should need more memory than the length of the
-			// sequence it represents, but I haven't proven it)
-			ps.add(new BrainfuckProgram(b-a));
+	// the cached decompressor of xs rerun, or else the result of a
+	// search, which is then cached.  with warm starts, the extensions of
+	// the cached decompressor of the longest prefix of xs are searched
+	// first; what that finds is returned but not cached.
+	private Program compressCached(byte[] xs, int memory_size) {
+		ResultCache.Entry entry = results.get(xs);
+		if (entry != null && entry.memory_size == memory_size) {
+			Program p = entry.run(xs.length);
+			if (p != null && p.cost() == entry.cost && p.incrementallyConsistentWith(xs)) {
+				steps = 0;
+				return p;
+			}
+		}
+		if (warm_start) {
+			// more memory changes nothing until the program fails
+			entry = results.getPrefix(xs);
+			if (entry != null && entry.memory_size <= memory_size) {
+				Program p = search(new BrainfuckProgram(entry.program.getBytes(), memory_size), xs);
+				if (p != null)
+					return p;
+			}
+		}
+		Program p = search(new BrainfuckProgram(memory_size), xs);
+		if (p != null)
+			results.put(xs, p);
+		return p;
+	}
 
-			while (!ps.isEmpty()) {
-				Program p = ps.remove();
+	// steps taken by the last (or current) search
+	private long steps = 0;
 
-				// this check is only needed because the empty
-				// program is initially finished
-				if (!p.finished())
-					p.step();
+	public long steps() {
+		return steps;
+	}
 
-				if (p.incrementallyConsistentWith(xs)) {
-					if (p.outputLength() == xs.length) {
-						// this program has xs as a prefix of its output,
-						// so it is a decompressor if time-limited
-						return p;
-						// TODO return p.freshTimeLimitedCopy();
-					} else if (!p.illegal() && !runaway(p, xs.length)) {
-						// this program's output so far is a prefix of xs
-
-						if (!p.finished()) {
-							// put it in the queue for another round
-							ps.add(p);
-						} else {
-							to_be_extrapolated.add(p);
-						}
-					}
-				}
-	
-				// maybe add more to the fringe
-				Program r;
-				while (ps.size() < MAX_ACTIVE_PROGRAM_COUNT - BRANCHING_FACTOR
-						&& (r = to_be_extrapolated.poll()) != null) {
-					for (Program q: r.successors()) {
-						if (q == null || q.illegal()) continue;
+	// like compress, but consider only root and the programs that extend it
+	public Program search(Program root, byte[] xs) {
+		if (scheduler == Scheduler.PHASED)
+			return phasedSearch(root, xs);
+		return search(root, null, xs);
+	}
 
-						if (q.codeLength() <= xs.length)
-							ps.add(q);
-					}
-				}
+	// start from root, or from checkpoint if not null
+	private Program search(Program root, Checkpoint checkpoint, byte[] xs) {
+		int memory_size = checkpoint == null ? root.memorySize() : checkpoint.memorySize();
+		steps = checkpoint == null ? 0 : checkpoint.steps();
+
+		// programs are keyed by their cost at the time they are added,
+		// so cost() is computed once per step rather than once per
+		// comparison
+		Frontier<Program> to_be_extrapolated, ps;
+		int max_active_program_count;
+		if (spill_directory != null) {
+			if (memory_budget > 0)
+				throw new IllegalStateException("spilling queues take no memory budget");
+			to_be_extrapolated = new SpillingQueue(spill_directory, memory_size, max_in_memory);
+			ps = new SpillingQueue(spill_directory, memory_size, max_in_memory);
+			// the active programs are capped as in memory, so that the
+			// search takes the same steps and only to_be_extrapolated
+			// grows without bound.  ps spills only past max_in_memory.
+			max_active_program_count = MAX_ACTIVE_PROGRAM_COUNT;
+		} else if (memory_budget > 0) {
+			int slot_size = BrainfuckProgram.serializedSize(BrainfuckProgram.maxLength(xs.length), memory_size);
+			ProgramArena arena = new ProgramArena(memory_budget, slot_size);
+			to_be_extrapolated = new ArenaQueue(arena, memory_size);
+			ps = new ArenaQueue(arena, memory_size);
+			// leave most of the arena to the finished programs
+			max_active_program_count = arena.capacity() / 4;
+		} else {
+			to_be_extrapolated = new BucketQueue<Program>();
+			ps = new BucketQueue<Program>();
+			max_active_program_count = MAX_ACTIVE_PROGRAM_COUNT;
+		}
+
+		if (checkpoint_file != null) {
+			if (!(ps instanceof BucketQueue))
+				throw new IllegalStateException("checkpoints need the in-memory queues");
+			checkpoint_writer = Executors.newSingleThreadExecutor();
+			checkpoint_pending = null;
+			capturing = null;
+			next_checkpoint = System.nanoTime() + checkpoint_interval * 1000000;
+		}
+
+		SearchStatistics statistics = listener != null || SearchStatistics.eventsEnabled() ? new SearchStatistics(xs.length) : null;
+		Program result = null;
+
+		// ps is let go of on running out of memory
+		Frontier<Program> active = ps;
+		Rounds rounds = new Rounds(ps, to_be_extrapolated, max_active_program_count, null, memory_size);
+		rounds.statistics = statistics;
+		try {
+			if (checkpoint != null) {
+				checkpoint.restore(ps, to_be_extrapolated);
+				rounds.expansions = checkpoint.expansions();
+			} else if (!root.finished()) {
+				ps.add(root, root.cost());
+			} else if (root.outputLength() == xs.length) {
+				// the empty program for the empty sequence
+				return result = root;
+			} else if (root.nextSuccessorCost() != Integer.MAX_VALUE) {
+				ps.add(root, root.nextSuccessorCost());
+				rounds.expansions++;
 			}
+
+			return result = rounds.run(xs);
 		} catch (OutOfMemoryError e) {
+			if (statistics != null)
+				System.err.println(statistics);
 			System.err.println(ps.size()+" programs active");
 			System.err.println(to_be_extrapolated.size()+" programs to be extrapolated");
 			Program p; int k = 0;
@@ -68,13 +281,651 @@ public class Compressor {
 				System.err.println("t:"+p.executionTime()+"\t$:"+p.cost()+"\t"+p);
 			}
 			ps = null;
+			rounds = null;
 			e.printStackTrace();
+		} finally {
+			if (statistics != null) {
+				statistics.flush(steps, active.size(), to_be_extrapolated.size(), listener);
+				statistics.finish(result, listener);
+			}
+			if (checkpoint_file != null)
+				finishCheckpointing();
+			if (spill_directory != null) {
+				spill_statistics = "active: "+active+"\nto be extrapolated: "+to_be_extrapolated;
+				((SpillingQueue)active).close();
+				((SpillingQueue)to_be_extrapolated).close();
+			}
 		}
 		
 		return null;
 	}
 	
-	public boolean runaway(Program p, int n) {
-		return p.executionTime() > Util.iexp2(n) || p.memorySize() > n;
+	// the queues of a search and the loop that runs rounds on them.
+	// search() runs it once; a Session runs it again on the same queues
+	// each time its sequence grows, with deferred set.
+	private class Rounds {
+		private final Frontier<Program> ps, to_be_extrapolated;
+		private final int max_active_program_count, memory_size;
+		// if not null, programs that are too long or run too long for xs
+		// are kept here, keyed by the length from which on they are worth
+		// running again, rather than dropped
+		private final BucketQueue<Program> deferred;
+		private SearchStatistics statistics = null;
+		// a finished program in ps stands for those of its successors
+		// that have not been tried yet, and is keyed by the cost of the
+		// next one.  only the successor that is about to run is ever
+		// constructed.  for the purpose of limiting the number of active
+		// programs, each of these counts as a full set of successors.
+		private int expansions = 0;
+		private long rounds = 0, first_round = 0;
+
+		Rounds(Frontier<Program> ps, Frontier<Program> to_be_extrapolated, int max_active_program_count,
+		       BucketQueue<Program> deferred, int memory_size) {
+			this.ps = ps;
+			this.to_be_extrapolated = to_be_extrapolated;
+			this.max_active_program_count = max_active_program_count;
+			this.deferred = deferred;
+			this.memory_size = memory_size;
+		}
+
+		// the first program to output xs, or null if the queues run out
+		// or the search is abandoned
+		Program run(byte[] xs) {
+			first_round = rounds;
+			running = this;
+			try {
+				return runRounds(xs);
+			} finally {
+				running = null;
+				if (statistics != null)
+					statistics.rounds = rounds - first_round;
+			}
+		}
+
+		private Program runRounds(byte[] xs) {
+			int n = xs.length;
+			while (!ps.isEmpty()) {
+				Program p = ps.peek();
+				// rounds are counted here whether or not there are
+				// statistics, which only look at every SAMPLE_INTERVAL-th
+				if (++rounds % SearchStatistics.SAMPLE_INTERVAL == 0 && statistics != null) {
+					statistics.sample(ps.peekKey(), p.codeLength());
+					if (rounds % STATISTICS_ROUNDS == 0) {
+						statistics.rounds = rounds - first_round;
+						statistics.flush(steps, ps.size(), to_be_extrapolated.size(), listener);
+					}
+				}
+
+				boolean doomed = false;
+				if (p.finished()) {
+					int key = ps.peekKey();
+					// the next successor is only constructed if it gets past
+					// its first step
+					doomed = batched_siblings && p instanceof BrainfuckProgram && ((BrainfuckProgram)p).skipDoomedSuccessor(xs);
+					Program q = doomed ? null : p.nextSuccessor();
+					int next_key = p.nextSuccessorCost();
+					if (next_key != key) {
+						ps.poll();
+						if (next_key != Integer.MAX_VALUE)
+							ps.add(p, next_key);
+						else
+							expansions--;
+					}
+					if (statistics != null)
+						statistics.expansions++;
+					if (doomed) {
+						// a round of its own all the same
+						if (statistics != null)
+							statistics.prune(SearchStatistics.Pruning.DOOMED);
+					} else if (q.illegal() || q.codeLength() > n) {
+						if (!q.illegal() && deferred != null)
+							deferred.add(q, q.codeLength());
+						else if (statistics != null)
+							statistics.prune(q.illegal() ? SearchStatistics.Pruning.ILLEGAL : SearchStatistics.Pruning.CODE_LENGTH);
+						continue;
+					} else {
+						p = q;
+					}
+				} else {
+					ps.poll();
+				}
+
+				if (doomed) {
+					steps++;
+				} else {
+					p.step();
+					steps++;
+
+					for (;;) {
+						visited(p);
+
+						if (p.incrementallyConsistentWith(xs)) {
+							if (p.outputLength() == n) {
+								// this program has xs as a prefix of its output,
+								// so it is a decompressor if time-limited
+								return p;
+								// TODO return p.freshTimeLimitedCopy();
+							}
+							// this program's output so far is a prefix of xs
+							SearchStatistics.Pruning dropped = p.illegal() ? SearchStatistics.Pruning.ILLEGAL : runaway(p, n);
+							// a session's memory is of its own size throughout
+							if (deferred != null && dropped == SearchStatistics.Pruning.RUNAWAY_MEMORY)
+								dropped = null;
+							if (deferred != null && dropped == SearchStatistics.Pruning.RUNAWAY_TIME) {
+								deferred.add(p, lengthFor(p.executionTime()));
+							} else if (dropped != null) {
+								if (statistics != null)
+									statistics.prune(dropped);
+							} else if (!p.finished()) {
+								int cost = p.cost();
+								if (scheduler == Scheduler.TIME_SLICED && cost < ps.peekKey()
+								    && !(hasRoom(ps.size() + 1, expansions, max_active_program_count) && !to_be_extrapolated.isEmpty())) {
+									// p would be dequeued again right away, so
+									// let it run until its cost may change
+									steps += p.step(sliceLength(p, n));
+									continue;
+								}
+								// put it in the queue for another round
+								ps.add(p, cost);
+							} else if (!transposition(p)) {
+								to_be_extrapolated.add(p, p.cost());
+							} else if (statistics != null) {
+								statistics.prune(SearchStatistics.Pruning.TRANSPOSITION);
+							}
+						} else if (statistics != null) {
+							statistics.prune(SearchStatistics.Pruning.INCONSISTENT);
+						}
+						break;
+					}
+				}
+
+				if (abandon(steps))
+					return null;
+
+				// maybe add more to the fringe
+				Program r;
+				while (hasRoom(ps.size(), expansions, max_active_program_count) && (r = to_be_extrapolated.poll()) != null) {
+					int cost = r.nextSuccessorCost();
+					if (cost != Integer.MAX_VALUE) {
+						ps.add(r, cost);
+						expansions++;
+					}
+				}
+
+				if (checkpoint_file != null && deferred == null && rounds % CHECKPOINT_ROUNDS == 0)
+					checkpoint(xs, memory_size, expansions, ps, to_be_extrapolated);
+			}
+			return null;
+		}
+	}
+
+	// rounds of the last (or current) PHASED search
+	private long phase_rounds = 0;
+
+	// in phase i, run every program of code length l <= i from scratch
+	// for as long as l + ilog2(executionTime()) <= i, depth first in the
+	// order of successors().  a program that outputs xs in phase i thus
+	// has levin cost i, and none has less or it would have been found in
+	// an earlier phase; ties go to the first program in depth first
+	// order.  state is recomputed in every phase instead of kept.
+	private Program phasedSearch(Program root, byte[] xs) {
+		steps = 0;
+		if (root.finished() && root.outputLength() == xs.length)
+			return root;
+		// there is no queue: a round is a program run from where its
+		// parent finished, and its cost is the phase
+		SearchStatistics statistics = listener != null || SearchStatistics.eventsEnabled() ? new SearchStatistics(xs.length) : null;
+		Program result = null;
+		phase_rounds = 0;
+		try {
+			// cost is at most xs.length for code plus xs.length for time
+			for (int phase = 0; phase <= 2 * xs.length; phase++) {
+				Program p = runPhase(((BrainfuckProgram)root).snapshot(), phase, xs, statistics);
+				if (p != null)
+					return result = p;
+				if (abandon(steps))
+					return null;
+			}
+			return null;
+		} finally {
+			if (statistics != null) {
+				statistics.rounds = phase_rounds;
+				statistics.flush(steps, 0, 0, listener);
+				statistics.finish(result, listener);
+			}
+		}
+	}
+
+	private Program runPhase(Program p, int phase, byte[] xs, SearchStatistics statistics) {
+		int k = phase - p.codeLength();
+		if (k < 0)
+			return null;
+		if (++phase_rounds % SearchStatistics.SAMPLE_INTERVAL == 0 && statistics != null) {
+			statistics.sample(phase, p.codeLength());
+			if (phase_rounds % STATISTICS_ROUNDS == 0) {
+				statistics.rounds = phase_rounds;
+				statistics.flush(steps, 0, 0, listener);
+			}
+		}
+		// ilog2(t) <= k means t < 2^(k+1)
+		long budget = (1L << (k + 1)) - 1;
+		while (!p.finished()) {
+			if (p.executionTime() >= budget)
+				return null;
+			steps += p.step((int)(budget - p.executionTime()));
+			visited(p);
+			if (!p.incrementallyConsistentWith(xs)) {
+				if (statistics != null)
+					statistics.prune(SearchStatistics.Pruning.INCONSISTENT);
+				return null;
+			}
+			if (p.executionTime() > budget)
+				return null;
+			if (p.outputLength() == xs.length)
+				return p;
+			SearchStatistics.Pruning dropped = p.illegal() ? SearchStatistics.Pruning.ILLEGAL : runaway(p, xs.length);
+			if (dropped != null) {
+				if (statistics != null)
+					statistics.prune(dropped);
+				return null;
+			}
+		}
+		if (batched_siblings && p instanceof BrainfuckProgram)
+			return runSuccessorsBatched((BrainfuckProgram)p, phase, xs, statistics);
+		for (Program q: p.successors()) {
+			if (q == null || q.codeLength() > xs.length)
+				continue;
+			if (statistics != null)
+				statistics.expansions++;
+			if (q.illegal()) {
+				if (statistics != null)
+					statistics.prune(SearchStatistics.Pruning.ILLEGAL);
+				continue;
+			}
+			Program r = runPhase(q, phase, xs, statistics);
+			if (r != null)
+				return r;
+		}
+		return null;
+	}
+
+	// the loop over successors at the end of runPhase, for a finished p.
+	// the successors all have the same code length and execution time, so
+	// whether they get to take a step is decided for all of them at once,
+	// and those that would fail on it are counted and skipped.
+	private Program runSuccessorsBatched(BrainfuckProgram p, int phase, byte[] xs, SearchStatistics statistics) {
+		int code_length = BrainfuckProgram.codeLength(p.length + 1);
+		int k = phase - code_length;
+		if (code_length > xs.length || k < 0 || p.executionTime() >= (1L << (k + 1)) - 1)
+			return null;
+		long doomed = SiblingBatch.doomed(p, xs);
+		steps += Long.bitCount(doomed);
+		long allowed = PruningAutomaton.allowed(p.automaton_state), surviving = allowed & ~doomed;
+		if (statistics != null) {
+			statistics.expansions += Long.bitCount(allowed);
+			statistics.prune(SearchStatistics.Pruning.DOOMED, Long.bitCount(doomed));
+		}
+		for (; surviving != 0; surviving &= surviving - 1) {
+			BrainfuckProgram q = new BrainfuckProgram(p, BrainfuckProgram.INSTRUCTIONS[Long.numberOfTrailingZeros(surviving)]);
+			if (q.illegal()) {
+				if (statistics != null)
+					statistics.prune(SearchStatistics.Pruning.ILLEGAL);
+				continue;
+			}
+			Program r = runPhase(q, phase, xs, statistics);
+			if (r != null)
+				return r;
+		}
+		return null;
+	}
+
+	// start capturing the state of the search if it is time, or capture
+	// another slice of it, and once it is complete write it out in the
+	// background.  the search only waits for the slices, which copy the
+	// queues but not the programs' memory.
+	private void checkpoint(byte[] xs, int memory_size, int expansions, Frontier<Program> ps, Frontier<Program> to_be_extrapolated) {
+		if (capturing == null) {
+			long now = System.nanoTime();
+			if (now < next_checkpoint || (checkpoint_pending != null && !checkpoint_pending.isDone()))
+				return;
+			next_checkpoint = now + checkpoint_interval * 1000000;
+			@SuppressWarnings("unchecked")
+			Checkpoint checkpoint = Checkpoint.start(scheduler, xs, memory_size, steps, expansions,
+			                                         (BucketQueue<Program>)ps, (BucketQueue<Program>)to_be_extrapolated);
+			capturing = checkpoint;
+			return;
+		}
+		if (!capturing.capture(CAPTURE_PROGRAMS))
+			return;
+		final Checkpoint checkpoint = capturing;
+		capturing = null;
+		checkpoint_pending = checkpoint_writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				checkpoint.write(checkpoint_file);
+				return null;
+			}
+		});
+	}
+
+	// wait for the last checkpoint to be written
+	private void finishCheckpointing() {
+		try {
+			if (checkpoint_pending != null)
+				checkpoint_pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.err.println("failed to write checkpoint: "+e.getCause());
+		}
+		checkpoint_writer.shutdown();
+	}
+
+	// why p is to be dropped for running away on a sequence of length n,
+	// or null if it isn't.  a looping program would run away eventually.
+	public SearchStatistics.Pruning runaway(Program p, int n) {
+		if (p.looping())
+			return SearchStatistics.Pruning.LOOPING;
+		if (p.executionTime() > Util.iexp2(n))
+			return SearchStatistics.Pruning.RUNAWAY_TIME;
+		if (p.memorySize() > n)
+			return SearchStatistics.Pruning.RUNAWAY_MEMORY;
+		return null;
+	}
+
+	// whether p's state has already been reached at no higher cost
+	private boolean transposition(Program p) {
+		if (transpositions == null)
+			return false;
+		long state = p.stateHash();
+		return state != 0 && transpositions.dominated(state, p.cost());
+	}
+
+	private static boolean hasRoom(int queue_size, int expansions, int max_active_program_count) {
+		int active_program_count = queue_size + expansions*(BRANCHING_FACTOR - 1);
+		return active_program_count < max_active_program_count - BRANCHING_FACTOR;
+	}
+
+	// number of steps p can take before the binary logarithm of its
+	// execution time changes or it runs away
+	// (in long, as 2^n + 1 overflows int for n >= 31)
+	private static int sliceLength(Program p, int n) {
+		int t = p.executionTime();
+		long end = Math.min(1L << (Util.ilog2(t) + 1), (1L << Math.min(n, 62)) + 1);
+		return (int)Math.min(end - t, Integer.MAX_VALUE);
+	}
+
+	// called whenever p has been stepped one or more times
+	protected void visited(Program p) {
+	}
+
+	// called between rounds; the search gives up if this returns true
+	protected boolean abandon(long steps) {
+		return false;
+	}
+
+	// the queues of the search that is running, if queued
+	private Rounds running = null;
+
+	// for abandon(): the lowest key in the queues of the queued search,
+	// or Integer.MAX_VALUE if they are empty.  it goes down as well as up,
+	// as output lowers costs; the highest it has been is how far the
+	// search has got in order of cost.
+	protected int queuedCost() {
+		if (running == null)
+			throw new IllegalStateException("no queued search is running");
+		return Math.min(running.ps.peekKey(), running.to_be_extrapolated.peekKey());
+	}
+
+	// a search for a sequence that grows at the end, one byte at a time
+	public Session session(int memory_size) {
+		return new Session(memory_size);
+	}
+
+	// programs that are consistent with a sequence stay consistent as it
+	// grows, so the queues carry over from one length to the next.  the
+	// programs that are dropped at one length only because they run too
+	// long, or are too long themselves, are set aside until the sequence
+	// is long enough for them.  memory is of the given size throughout,
+	// so memorySize() does not count toward running away.  programs are
+	// visited in a different order than by compress(), so the
+	// decompressors found may differ.
+	public class Session {
+		private final Program root;
+		private byte[] xs = new byte[16];
+		private int n = 0;
+
+		private final Rounds rounds;
+
+		// has output xs[0..n), or null if not found (yet)
+		private Program best = null;
+		private boolean exhausted = false;
+		private long session_steps = 0;
+
+		private Session(int memory_size) {
+			root = new BrainfuckProgram(memory_size);
+			rounds = new Rounds(new BucketQueue<Program>(), new BucketQueue<Program>(), MAX_ACTIVE_PROGRAM_COUNT,
+			                    new BucketQueue<Program>(), memory_size);
+			best = root;
+			if (root.nextSuccessorCost() != Integer.MAX_VALUE) {
+				rounds.ps.add(root, root.nextSuccessorCost());
+				rounds.expansions++;
+			}
+		}
+
+		public int length() {
+			return n;
+		}
+
+		// steps taken by all searches of this session
+		public long steps() {
+			return session_steps;
+		}
+
+		public void append(byte x) {
+			if (n == xs.length)
+				xs = Arrays.copyOf(xs, 2 * n);
+			xs[n++] = x;
+			// the last decompressor may well go on to output x.  it has
+			// been handed out, so a copy of it runs on
+			if (best != null && best != root)
+				requeue(((BrainfuckProgram)best).snapshot());
+			best = null;
+			exhausted = false;
+			while (!rounds.deferred.isEmpty() && rounds.deferred.peekKey() <= n)
+				requeue(rounds.deferred.poll());
+		}
+
+		public void append(byte[] bytes) {
+			for (byte x: bytes)
+				append(x);
+		}
+
+		// the first program found that outputs the sequence so far, or
+		// null if there is none or the search was abandoned
+		public Program currentBest() {
+			if (best == null && !exhausted) {
+				steps = 0;
+				// each search of the session is reported on its own
+				rounds.statistics = listener != null || SearchStatistics.eventsEnabled() ? new SearchStatistics(n) : null;
+				best = rounds.run(Arrays.copyOf(xs, n));
+				session_steps += steps;
+				exhausted = best == null;
+				if (rounds.statistics != null) {
+					rounds.statistics.flush(steps, rounds.ps.size(), rounds.to_be_extrapolated.size(), listener);
+					rounds.statistics.finish(best, listener);
+				}
+			}
+			return best;
+		}
+
+		private void requeue(Program p) {
+			if (!p.finished())
+				rounds.ps.add(p, p.cost());
+			else if (!transposition(p))
+				rounds.to_be_extrapolated.add(p, p.cost());
+		}
+	}
+
+	// 2^lengthFor(t) >= t
+	private static int lengthFor(int t) {
+		return t <= 1 ? 0 : Util.ilog2(t - 1) + 1;
+	}
+
+	// check that TIME_SLICED visits programs in the same order as STEPWISE,
+	// that batching siblings changes no result or step count, and that
+	// PHASED finds decompressors of no higher cost than either
+	public static void test() {
+		testSession();
+
+		byte[][] small = {
+			{ 0, 1, 2 },
+			{ 1, 1, 1 },
+			{ 0, 0, 1, 1 },
+			{ 0, 1, 2, 3, 4 },
+		};
+		for (byte[] xs: small) {
+			Compressor queued = new Compressor(), phased = new Compressor(Scheduler.PHASED),
+			           unbatched = new Compressor(Scheduler.PHASED);
+			unbatched.setBatchedSiblings(false);
+			Program p = queued.compress(xs), q = phased.compress(xs), r = unbatched.compress(xs);
+			if (p != null && (q == null || !q.incrementallyConsistentWith(xs) || q.outputLength() != xs.length
+			                  || p.cost() < q.cost())) {
+				System.err.println("sequence: "+Arrays.toString(xs));
+				System.err.println("time sliced: "+p+(p == null ? "" : " at cost "+p.cost()));
+				System.err.println("phased:      "+q+(q == null ? "" : " at cost "+q.cost()));
+				System.exit(1);
+			}
+			if (!String.valueOf(q).equals(String.valueOf(r)) || phased.steps() != unbatched.steps()) {
+				System.err.println("sequence: "+Arrays.toString(xs));
+				System.err.println("batched:   "+q+" after "+phased.steps()+" steps");
+				System.err.println("unbatched: "+r+" after "+unbatched.steps()+" steps");
+				System.exit(1);
+			}
+		}
+
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 1, 2, 4, 8, 16 },
+			{ 0, 0, 1, 1 },
+		};
+		for (byte[] xs: xss) {
+			TracingCompressor stepwise = new TracingCompressor(Scheduler.STEPWISE);
+			TracingCompressor time_sliced = new TracingCompressor(Scheduler.TIME_SLICED);
+			Program p = stepwise.compress(xs), q = time_sliced.compress(xs);
+			if (!stepwise.trace().equals(time_sliced.trace()) || !String.valueOf(p).equals(String.valueOf(q))) {
+				System.err.println("sequence: "+Arrays.toString(xs));
+				System.err.println("stepwise:     "+p+" after "+stepwise.trace().size()+" rounds");
+				System.err.println("time sliced:  "+q+" after "+time_sliced.trace().size()+" rounds");
+				System.exit(1);
+			}
+			// ruling out doomed successors saves work, not steps
+			Compressor unbatched = new Compressor();
+			unbatched.setBatchedSiblings(false);
+			Program r = unbatched.compress(xs);
+			if (!String.valueOf(q).equals(String.valueOf(r)) || time_sliced.steps() != unbatched.steps()) {
+				System.err.println("sequence: "+Arrays.toString(xs));
+				System.err.println("batched:   "+q+" after "+time_sliced.steps()+" steps");
+				System.err.println("unbatched: "+r+" after "+unbatched.steps()+" steps");
+				System.exit(1);
+			}
+		}
+
+		// slices end at the next power of two even for long sequences
+		BrainfuckProgram p = new BrainfuckProgram(32);
+		int[][] cases = {
+			// execution time, sequence length, slice length
+			{ 5, 31, 3 },
+			{ (1 << 30) + 5, 31, (1 << 30) - 5 },
+			{ (1 << 30) + 5, 40, (1 << 30) - 5 },
+		};
+		for (int[] c: cases) {
+			p.execution_time = c[0];
+			if (sliceLength(p, c[1]) != c[2]) {
+				System.err.println("slice after "+c[0]+" steps for "+c[1]+" bytes: "+sliceLength(p, c[1])+" rather than "+c[2]);
+				System.exit(1);
+			}
+		}
+	}
+
+	// a session must find a decompressor for every prefix that has one,
+	// in fewer steps than searching for each from scratch, and leave the
+	// decompressors it has handed out as they were
+	private static void testSession() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 1, 2, 4, 8, 16 },
+			{ 0, 0, 1, 1, 2, 2 },
+		};
+		for (byte[] xs: xss) {
+			Compressor c = new Compressor();
+			Session session = c.session(xs.length);
+			long scratch_steps = 0;
+			List<Program> found = new ArrayList<Program>();
+			List<String> states = new ArrayList<String>();
+			for (int n = 1; n <= xs.length; n++) {
+				session.append(xs[n - 1]);
+				Program p = session.currentBest();
+				if (p != null) {
+					found.add(p);
+					states.add(p+"@"+p.executionTime()+":"+p.outputLength());
+				}
+				byte[] prefix = Arrays.copyOf(xs, n);
+				Compressor d = new Compressor();
+				Program q = d.compress(prefix);
+				scratch_steps += d.steps();
+				if (p == null ? q != null : p.outputLength() != n || !outputs(p.toString(), xs.length, prefix)) {
+					System.err.println("session on "+Arrays.toString(prefix)+": "+p+", from scratch: "+q);
+					System.exit(1);
+				}
+			}
+			for (int i = 0; i < found.size(); i++) {
+				Program p = found.get(i);
+				if (!states.get(i).equals(p+"@"+p.executionTime()+":"+p.outputLength())) {
+					System.err.println("session on "+Arrays.toString(xs)+" changed "+states.get(i)+" to "
+					                   +p+"@"+p.executionTime()+":"+p.outputLength());
+					System.exit(1);
+				}
+			}
+			if (session.steps() >= scratch_steps) {
+				System.err.println("session on "+Arrays.toString(xs)+" took "+session.steps()+" steps, "
+				                   +scratch_steps+" from scratch");
+				System.exit(1);
+			}
+		}
+	}
+
+	// whether the given program outputs xs when run from scratch
+	static boolean outputs(String program, int memory_size, byte[] xs) {
+		Program p = new BrainfuckProgram(program.getBytes(), memory_size);
+		while (p.outputLength() < xs.length && !p.finished() && !p.illegal() && !p.looping()) {
+			p.step();
+			if (!p.incrementallyConsistentWith(xs))
+				return false;
+		}
+		return p.outputLength() == xs.length;
+	}
+
+	// records which program ran up to which execution time, merging
+	// consecutive rounds of the same program
+	private static class TracingCompressor extends Compressor {
+		private final List<String> trace = new ArrayList<String>();
+		private Program last = null;
+
+		public TracingCompressor(Scheduler scheduler) {
+			super(scheduler);
+		}
+
+		@Override
+		protected void visited(Program p) {
+			if (p == last)
+				trace.remove(trace.size() - 1);
+			trace.add(p+"@"+p.executionTime());
+			last = p;
+		}
+
+		public List<String> trace() {
+			return trace;
+		}
 	}
 }
@@ -0,0 +1,550 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// ParallelCompressor over worker processes rather than threads, so that
+// each partition's search has a heap of its own.  the coordinator
+// launches the workers (Main --worker PORT) on this machine, and they
+// connect back to it over localhost.  partitions are handed out one at a
+// time to whichever worker is idle, and those of a worker that goes away
+// are handed out again.  the winner is decided as in ParallelCompressor,
+// by the cost the search of its partition had got to, so the outcome is
+// that of ParallelCompressor whatever the number of workers.  once there
+// is a winner it is sent to all workers as a bound, and they give up the
+// partitions that can't beat it.
+//
+// a worker splits a partition as ParallelCompressor does, after
+// split_steps steps of its search, and sends back the pieces.  they are
+// handed out to the idle workers in the same order as there, so that a
+// partition that takes most of the steps doesn't keep one worker busy
+// while the others wait for it.
+//
+// messages are a type byte followed by
+//   to workers:   TASK int partition, bytes xs, int memory_size,
+//                      bytes program, path, int level, long split_steps,
+//                      bound
+//                 BOUND bound
+//                 QUIT
+//   to the coordinator:
+//                 HELLO long pid
+//                 PROGRESS int partition, long steps, int cost
+//                 FOUND int partition, int cost, long steps, bytes program
+//                 SPLIT int partition, int level, int count,
+//                       as many bytes programs
+//                 DONE int partition, long steps
+// where partition is the coordinator's number for it, and path and level
+// are those of ParallelCompressor.Partition.  a bound is int cost, path,
+// long steps, compared as ParallelCompressor.Result does; a path is an
+// int length and as many ints, bytes are an int length and as many
+// bytes, and programs are as serialized by BrainfuckProgram.writeTo.  a
+// partition's search is reported on every PROGRESS_STEPS steps, with the
+// lowest cost of the programs it has run that are still consistent with
+// xs.
+public class DistributedCompressor {
+	private static final byte TASK = 0, BOUND = 1, QUIT = 2, HELLO = 3, PROGRESS = 4, FOUND = 5, DONE = 6, SPLIT = 7,
+	                          LOST = 8; // not sent, but queued when a worker's connection ends
+	private static final long PROGRESS_STEPS = 1 << 20;
+	private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+
+	private final int prefix_length;
+	private final long split_steps;
+	private final ServerSocket server;
+	private final List<Worker> workers = new ArrayList<Worker>();
+	// from all workers, in the order received
+	private final BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
+
+	// of the last (or current) compress, numbered in the order they
+	// came about
+	private final List<ParallelCompressor.Partition> partitions = new ArrayList<ParallelCompressor.Partition>();
+	private long steps = 0;
+
+	private static class Message {
+		final Worker worker;
+		final byte type;
+		final int partition, cost;
+		final long steps;
+		final byte[][] programs;
+
+		Message(Worker worker, byte type, int partition, long steps, int cost, byte[][] programs) {
+			this.worker = worker;
+			this.type = type;
+			this.partition = partition;
+			this.steps = steps;
+			this.cost = cost;
+			this.programs = programs;
+		}
+	}
+
+	private class Worker implements Runnable {
+		final Process process;
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		long pid;
+		boolean alive = true;
+		// the partition it is searching, or -1, and the lowest cost
+		// reported for it
+		int partition = -1, cost = 0;
+
+		Worker(Process process, Socket socket) throws IOException {
+			this.process = process;
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					byte type = in.readByte();
+					switch (type) {
+					case PROGRESS:
+						messages.add(new Message(this, type, in.readInt(), in.readLong(), in.readInt(), null));
+						break;
+					case FOUND: {
+						int partition = in.readInt(), cost = in.readInt();
+						messages.add(new Message(this, type, partition, in.readLong(), cost, new byte[][]{ readBytes(in) }));
+						break;
+					}
+					case SPLIT: {
+						int partition = in.readInt(), level = in.readInt();
+						byte[][] programs = new byte[in.readInt()][];
+						for (int i = 0; i < programs.length; i++)
+							programs[i] = readBytes(in);
+						messages.add(new Message(this, type, partition, 0, level, programs));
+						break;
+					}
+					case DONE:
+						messages.add(new Message(this, type, in.readInt(), in.readLong(), 0, null));
+						break;
+					default:
+						throw new IOException("unexpected message "+type+" from worker "+pid);
+					}
+				}
+			} catch (IOException e) {
+				messages.add(new Message(this, LOST, -1, 0, 0, null));
+			}
+		}
+
+		// a worker that can't be written to is left to its reader to
+		// report as lost
+		void send(byte[] message) {
+			try {
+				out.write(message);
+				out.flush();
+			} catch (IOException e) {
+				alive = false;
+			}
+		}
+	}
+
+	// starts worker_count worker processes and waits for them to connect
+	public DistributedCompressor(int worker_count, int prefix_length) throws IOException {
+		this(worker_count, prefix_length, ParallelCompressor.SPLIT_STEPS);
+	}
+
+	public DistributedCompressor(int worker_count, int prefix_length, long split_steps) throws IOException {
+		this.prefix_length = prefix_length;
+		this.split_steps = split_steps;
+		this.server = new ServerSocket(0, worker_count, InetAddress.getLoopbackAddress());
+		server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+		List<Process> processes = new ArrayList<Process>();
+		try {
+			for (int i = 0; i < worker_count; i++) {
+				String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+				processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				                                 "Main", "--worker", String.valueOf(server.getLocalPort()))
+				              .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+				              .redirectError(ProcessBuilder.Redirect.INHERIT)
+				              .start());
+			}
+			for (int i = 0; i < worker_count; i++) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				if (in.readByte() != HELLO)
+					throw new IOException("worker didn't say hello");
+				long pid = in.readLong();
+				Process process = null;
+				for (Process p: processes)
+					if (p.pid() == pid)
+						process = p;
+				Worker worker = new Worker(process, socket);
+				worker.pid = pid;
+				workers.add(worker);
+				Thread reader = new Thread(worker, "worker "+pid);
+				reader.setDaemon(true);
+				reader.start();
+			}
+		} catch (IOException e) {
+			close();
+			// and those that never connected
+			for (Process process: processes)
+				process.destroyForcibly();
+			throw e;
+		}
+	}
+
+	// steps taken by the winning partition's search in the last compress
+	public long steps() {
+		return steps;
+	}
+
+	public Program compress(byte[] xs) throws IOException {
+		return compress(xs, 0, xs.length);
+	}
+
+	public Program compress(byte[] xs, int a, int b) throws IOException {
+		steps = 0;
+		int memory_size = b-a;
+		List<Program> roots = new ArrayList<Program>();
+		Program p = ParallelCompressor.partition(new BrainfuckProgram(memory_size), prefix_length, xs, roots);
+		if (p != null)
+			return p;
+
+		partitions.clear();
+		// handed out in ParallelCompressor.Partition.ORDER
+		Queue<Integer> pending = new PriorityQueue<Integer>(new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				return ParallelCompressor.Partition.ORDER.compare(partitions.get(i), partitions.get(j));
+			}
+		});
+		for (int i = 0; i < roots.size(); i++) {
+			partitions.add(new ParallelCompressor.Partition(roots.get(i), new int[]{ i }, 0));
+			pending.add(i);
+		}
+		// the best so far, and what the workers are to beat: at first
+		// anything
+		ParallelCompressor.Result best = null;
+		ParallelCompressor.Result bound = new ParallelCompressor.Result(null, Integer.MAX_VALUE, new int[]{ Integer.MAX_VALUE }, Long.MAX_VALUE);
+
+		int busy = 0;
+		for (Worker worker: workers)
+			busy += assign(worker, pending, xs, memory_size, bound);
+		while (busy > 0) {
+			Message message;
+			try {
+				message = messages.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			Worker worker = message.worker;
+			switch (message.type) {
+			case PROGRESS:
+				worker.cost = message.cost;
+				continue;
+			case FOUND:
+				ParallelCompressor.Result result = new ParallelCompressor.Result(
+					BrainfuckProgram.readFrom(ByteBuffer.wrap(message.programs[0]), 0, memory_size),
+					message.cost, partitions.get(message.partition).path, message.steps);
+				if (best == null || result.betterThan(best)) {
+					best = bound = result;
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					try (DataOutputStream out = new DataOutputStream(bytes)) {
+						out.writeByte(BOUND);
+						writeBound(out, bound);
+					}
+					for (Worker w: workers)
+						if (w.alive && w != worker)
+							w.send(bytes.toByteArray());
+				}
+				break;
+			case SPLIT:
+				ParallelCompressor.Partition parent = partitions.get(message.partition);
+				for (int i = 0; i < message.programs.length; i++) {
+					Program root = BrainfuckProgram.readFrom(ByteBuffer.wrap(message.programs[i]), 0, memory_size);
+					partitions.add(parent.child(root, i, message.cost));
+					pending.add(partitions.size() - 1);
+				}
+				break;
+			case DONE:
+				break;
+			case LOST:
+				if (!worker.alive && worker.partition < 0)
+					continue;
+				worker.alive = false;
+				if (worker.partition >= 0)
+					pending.add(worker.partition);
+				break;
+			}
+			if (worker.partition >= 0) {
+				worker.partition = -1;
+				busy--;
+			}
+			// the workers that are idle, after a split more than one
+			for (Worker w: workers)
+				busy += assign(w, pending, xs, memory_size, bound);
+			if (busy == 0 && !pending.isEmpty())
+				throw new IOException("all workers lost with "+pending.size()+" partitions left");
+		}
+
+		if (best == null)
+			return null;
+		steps = best.steps;
+		return best.program;
+	}
+
+	// hand the next pending partition to worker, if it is alive and
+	// idle; returns the number of partitions handed out
+	private int assign(Worker worker, Queue<Integer> pending, byte[] xs, int memory_size, ParallelCompressor.Result bound) {
+		if (!worker.alive || worker.partition >= 0 || pending.isEmpty())
+			return 0;
+		int partition = pending.poll();
+		ParallelCompressor.Partition task = partitions.get(partition);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(TASK);
+			out.writeInt(partition);
+			writeBytes(out, xs);
+			out.writeInt(memory_size);
+			writeBytes(out, serialize(task.root));
+			writePath(out, task.path);
+			out.writeInt(task.level);
+			out.writeLong(split_steps);
+			writeBound(out, bound);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		worker.send(bytes.toByteArray());
+		if (!worker.alive) {
+			pending.add(partition);
+			return 0;
+		}
+		worker.partition = partition;
+		worker.cost = 0;
+		return 1;
+	}
+
+	// tell the workers to quit, and wait for them to
+	public void close() throws IOException {
+		byte[] quit = { QUIT };
+		for (Worker worker: workers) {
+			worker.send(quit);
+			worker.socket.close();
+		}
+		for (Worker worker: workers) {
+			if (worker.process == null)
+				continue;
+			try {
+				if (!worker.process.waitFor(10, TimeUnit.SECONDS))
+					worker.process.destroyForcibly();
+			} catch (InterruptedException e) {
+				worker.process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+		server.close();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Worker worker: workers) {
+			sb.append("worker "+worker.pid+": ");
+			if (!worker.alive)
+				sb.append("lost\n");
+			else if (worker.partition < 0)
+				sb.append("idle\n");
+			else
+				sb.append("partition "+Arrays.toString(partitions.get(worker.partition).path)+" at cost "+worker.cost+"\n");
+		}
+		return sb.toString();
+	}
+
+	private static byte[] serialize(Program p) {
+		BrainfuckProgram q = (BrainfuckProgram)p;
+		byte[] bytes = new byte[q.serializedSize()];
+		q.writeTo(ByteBuffer.wrap(bytes), 0);
+		return bytes;
+	}
+
+	private static void writeBound(DataOutputStream out, ParallelCompressor.Result bound) throws IOException {
+		out.writeInt(bound.cost);
+		writePath(out, bound.partition);
+		out.writeLong(bound.steps);
+	}
+
+	private static ParallelCompressor.Result readBound(DataInputStream in) throws IOException {
+		return new ParallelCompressor.Result(null, in.readInt(), readPath(in), in.readLong());
+	}
+
+	private static void writePath(DataOutputStream out, int[] path) throws IOException {
+		out.writeInt(path.length);
+		for (int i: path)
+			out.writeInt(i);
+	}
+
+	private static int[] readPath(DataInputStream in) throws IOException {
+		int[] path = new int[in.readInt()];
+		for (int i = 0; i < path.length; i++)
+			path[i] = in.readInt();
+		return path;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	// the worker side: connect to the coordinator at the given port and
+	// search the partitions it hands out until told to quit.  messages
+	// are read on this thread and partitions searched on another.
+	public static void work(int port) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeByte(HELLO);
+			out.writeLong(ProcessHandle.current().pid());
+			out.flush();
+
+			// the best decompressor known to the coordinator
+			final AtomicReference<ParallelCompressor.Result> bound = new AtomicReference<ParallelCompressor.Result>();
+			ExecutorService searcher = Executors.newSingleThreadExecutor();
+			try {
+				while (true) {
+					byte type = in.readByte();
+					if (type == QUIT)
+						return;
+					if (type == BOUND) {
+						bound.set(readBound(in));
+						continue;
+					}
+					if (type != TASK)
+						throw new IOException("unexpected message "+type+" from coordinator");
+					final int partition = in.readInt();
+					final byte[] xs = readBytes(in);
+					int memory_size = in.readInt();
+					Program root = BrainfuckProgram.readFrom(ByteBuffer.wrap(readBytes(in)), 0, memory_size);
+					final ParallelCompressor.Partition task = new ParallelCompressor.Partition(root, readPath(in), in.readInt());
+					final long split_steps = in.readLong();
+					bound.set(readBound(in));
+					searcher.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							search(task, partition, split_steps, xs, bound, out);
+							return null;
+						}
+					});
+				}
+			} catch (EOFException e) {
+				// the coordinator went away
+			} finally {
+				searcher.shutdownNow();
+			}
+		}
+	}
+
+	private static void search(ParallelCompressor.Partition task, final int partition, long split_steps, final byte[] xs,
+	                           AtomicReference<ParallelCompressor.Result> bound, final DataOutputStream out) throws IOException {
+		ParallelCompressor.PartitionSearch c = new ParallelCompressor.PartitionSearch(task, bound, split_steps) {
+			private long next_report = PROGRESS_STEPS;
+			private int lowest_cost = Integer.MAX_VALUE;
+
+			@Override
+			protected void visited(Program p) {
+				if (!p.illegal() && p.incrementallyConsistentWith(xs))
+					lowest_cost = Math.min(lowest_cost, p.cost());
+			}
+
+			@Override
+			protected boolean abandon(long steps) {
+				if (steps >= next_report) {
+					next_report = steps + PROGRESS_STEPS;
+					synchronized (out) {
+						try {
+							out.writeByte(PROGRESS);
+							out.writeInt(partition);
+							out.writeLong(steps);
+							out.writeInt(lowest_cost);
+							out.flush();
+						} catch (IOException e) {
+							return true;
+						}
+					}
+				}
+				return super.abandon(steps) || Thread.currentThread().isInterrupted();
+			}
+		};
+		List<ParallelCompressor.Partition> children = new ArrayList<ParallelCompressor.Partition>();
+		ParallelCompressor.Result result = c.find(xs, children);
+		synchronized (out) {
+			if (result != null) {
+				out.writeByte(FOUND);
+				out.writeInt(partition);
+				out.writeInt(result.cost);
+				out.writeLong(result.steps);
+				writeBytes(out, serialize(result.program));
+			} else if (!children.isEmpty()) {
+				out.writeByte(SPLIT);
+				out.writeInt(partition);
+				out.writeInt(c.level());
+				out.writeInt(children.size());
+				for (ParallelCompressor.Partition child: children)
+					writeBytes(out, serialize(child.root));
+			} else {
+				out.writeByte(DONE);
+				out.writeInt(partition);
+				out.writeLong(c.steps());
+			}
+			out.flush();
+		}
+	}
+
+	// with workers in separate processes, the outcome must be that of
+	// ParallelCompressor, also after a worker has been killed and with
+	// partitions split
+	public static void test() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 1, 2, 4, 8, 16 },
+			{ 3, 3, 3, 3 },
+		};
+		DistributedCompressor c = null;
+		try {
+			c = new DistributedCompressor(3, 2, 500);
+			for (int i = 0; i < xss.length; i++) {
+				if (i == 1)
+					c.workers.get(0).process.destroyForcibly().waitFor();
+				Program p = new ParallelCompressor(1, 2, 500).compress(xss[i]);
+				Program q = c.compress(xss[i]);
+				if (!String.valueOf(p).equals(String.valueOf(q)) || q.outputLength() != xss[i].length) {
+					System.err.println("sequence:    "+Arrays.toString(xss[i]));
+					System.err.println("parallel:    "+p);
+					System.err.println("distributed: "+q);
+					System.err.print(c);
+					System.exit(1);
+				}
+				if (i == 0) {
+					List<Program> roots = new ArrayList<Program>();
+					ParallelCompressor.partition(new BrainfuckProgram(xss[i].length), 2, xss[i], roots);
+					if (c.partitions.size() == roots.size()) {
+						System.err.println("no partition split for "+Arrays.toString(xss[i]));
+						System.exit(1);
+					}
+				}
+			}
+			if (c.workers.get(0).alive) {
+				System.err.println("killed worker not noticed:\n"+c);
+				System.exit(1);
+			}
+			c.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
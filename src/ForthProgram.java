@@ -183,6 +183,31 @@ public class ForthProgram extends Program {
 		// TODO
 		return ps;
 	}
+
+	// successors() one at a time, skipping the pruned (null) ones
+	private ForthProgram[] pending_successors = null;
+	private int next_successor = 0;
+
+	@Override public ForthProgram nextSuccessor() {
+		skipPrunedSuccessors();
+		if (next_successor == pending_successors.length)
+			return null;
+		return pending_successors[next_successor++];
+	}
+
+	@Override public int nextSuccessorCost() {
+		skipPrunedSuccessors();
+		if (next_successor == pending_successors.length)
+			return Integer.MAX_VALUE;
+		return pending_successors[next_successor].cost();
+	}
+
+	private void skipPrunedSuccessors() {
+		if (pending_successors == null)
+			pending_successors = successors();
+		while (next_successor < pending_successors.length && pending_successors[next_successor] == null)
+			next_successor++;
+	}
 	
 	
 	private static class Stack {
@@ -0,0 +1,17 @@
+// the queues Compressor keeps its programs in: priority queues for small
+// integer keys (program costs), FIFO among elements with equal keys.
+// the key is given when an element is added and not looked at again.
+public interface Frontier<E> {
+	public int size();
+	public boolean isEmpty();
+
+	public void add(E e, int key);
+
+	// key of the head, or Integer.MAX_VALUE if empty
+	public int peekKey();
+
+	// the head stays the same object for as long as it is the head, so
+	// changes made to it through peek() stick
+	public E peek();
+	public E poll();
+}
@@ -0,0 +1,110 @@
+// BucketQueue for int elements, without boxing them
+public class IntBucketQueue {
+	private IntFifo[] buckets;
+	private int offset; // key of buckets[0]
+	private int min; // no nonempty buckets below this index
+	private int size = 0;
+
+	public IntBucketQueue() {
+		buckets = new IntFifo[16];
+		offset = 0;
+		min = buckets.length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void add(int e, int key) {
+		int i = key - offset;
+		if (i < 0 || i >= buckets.length) {
+			cover(key);
+			i = key - offset;
+		}
+		IntFifo bucket = buckets[i];
+		if (bucket == null)
+			bucket = buckets[i] = new IntFifo();
+		bucket.add(e);
+		if (i < min)
+			min = i;
+		size++;
+	}
+
+	// key of the head, or Integer.MAX_VALUE if empty
+	public int peekKey() {
+		if (size == 0)
+			return Integer.MAX_VALUE;
+		advance();
+		return min + offset;
+	}
+
+	// only call if nonempty
+	public int peek() {
+		advance();
+		return buckets[min].peek();
+	}
+
+	// only call if nonempty
+	public int poll() {
+		advance();
+		size--;
+		return buckets[min].poll();
+	}
+
+	private void advance() {
+		while (buckets[min] == null || buckets[min].isEmpty())
+			min++;
+	}
+
+	// grow the bucket array so that it covers key
+	private void cover(int key) {
+		int lo = Math.min(offset, key), hi = Math.max(offset + buckets.length, key + 1);
+		int length = buckets.length;
+		while (length < hi - lo)
+			length *= 2;
+		int new_offset = key < offset ? hi - length : lo;
+
+		IntFifo[] new_buckets = new IntFifo[length];
+		System.arraycopy(buckets, 0, new_buckets, offset - new_offset, buckets.length);
+		min += offset - new_offset;
+		buckets = new_buckets;
+		offset = new_offset;
+	}
+
+	// growable ring buffer
+	private static class IntFifo {
+		private int[] xs = new int[16];
+		private int head = 0, size = 0;
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public void add(int x) {
+			if (size == xs.length) {
+				int[] ys = new int[2*xs.length];
+				for (int i = 0; i < size; i++)
+					ys[i] = xs[(head + i) % xs.length];
+				xs = ys;
+				head = 0;
+			}
+			xs[(head + size) % xs.length] = x;
+			size++;
+		}
+
+		public int peek() {
+			return xs[head];
+		}
+
+		public int poll() {
+			int x = xs[head];
+			head = (head + 1) % xs.length;
+			size--;
+			return x;
+		}
+	}
+}
@@ -1,8 +1,60 @@
+import java.io.File;
+import java.io.IOException;
+
 public class Main {
-	public static void main(String[] args) {
-		BrainfuckProgram.test();
+	// usage: Main [--checkpoint FILE] [--resume FILE]
+	//        Main --compress FILE OUT | --decompress FILE OUT
+	//        Main --worker PORT
+	// with --checkpoint, searches save their state to FILE every minute;
+	// with --resume, the search saved in FILE is continued instead of
+	// running the tests and examples.  --compress and --decompress
+	// convert between a file and a BlockCompressor container.  --worker
+	// runs a DistributedCompressor worker for the coordinator at PORT.
+	public static void main(String[] args) throws IOException {
+		File checkpoint = null, resume = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--checkpoint") && i + 1 < args.length) {
+				checkpoint = new File(args[++i]);
+			} else if (args[i].equals("--resume") && i + 1 < args.length) {
+				resume = new File(args[++i]);
+			} else if ((args[i].equals("--compress") || args[i].equals("--decompress")) && i + 2 < args.length) {
+				convert(args[i].equals("--compress"), new File(args[i + 1]), new File(args[i + 2]));
+				return;
+			} else if (args[i].equals("--worker") && i + 1 < args.length) {
+				DistributedCompressor.work(Integer.parseInt(args[i + 1]));
+				return;
+			} else {
+				System.err.println("usage: Main [--checkpoint FILE] [--resume FILE]");
+				System.err.println("       Main --compress FILE OUT | --decompress FILE OUT");
+				System.err.println("       Main --worker PORT");
+				System.exit(2);
+			}
+		}
 
 		Compressor c = new Compressor();
+		if (checkpoint != null)
+			c.setCheckpointing(checkpoint, 60000);
+
+		if (resume != null) {
+			System.out.println(c.resume(resume));
+			return;
+		}
+
+		BrainfuckProgram.test();
+		PruningAutomaton.test();
+		SiblingBatch.test();
+		BrainfuckCompiler.test();
+		Compressor.test();
+		ParallelCompressor.test();
+		MultiCompressor.test();
+		SearchStatistics.test();
+		BlockCompressor.test();
+		CompressionService.test();
+		DistributedCompressor.test();
+		TranspositionTable.test();
+		SpillingQueue.test();
+		Checkpoint.test();
+		ResultCache.test();
 
 		Program p;
 
@@ -22,4 +74,17 @@ public class Main {
 		p = c.compress("Hello World!\n".getBytes());
 		System.out.println(p);
 	}
+
+	private static void convert(boolean compress, File in, File out) throws IOException {
+		int thread_count = Runtime.getRuntime().availableProcessors();
+		long t0 = System.nanoTime();
+		if (compress) {
+			BlockCompressor c = new BlockCompressor(16, thread_count, 1 << 20, 10000);
+			c.compress(in, out);
+			System.out.println(c);
+		} else {
+			BlockCompressor.decompress(in, out, thread_count);
+			System.out.println(String.format("%d bytes out; %.3g MB/s", out.length(), out.length() * 1e3 / (System.nanoTime() - t0)));
+		}
+	}
 }
@@ -0,0 +1,272 @@
+import java.util.*;
+
+// compresses many sequences in one search.  which programs get run
+// doesn't depend on the sequence until their output is checked against
+// it, so the targets are put in a trie over their bytes and each program
+// goes along with the trie node its output has led to.  a program is
+// dropped when its output leaves the trie, or when all targets below its
+// node have been found; the first program to reach a target's node is
+// its decompressor, if it is within that target's bounds.  bounds on
+// code length and execution time for keeping a program come from the
+// longest target below its node, and memory is as large as the longest
+// target.  visits programs in the same order as Compressor's
+// STEPWISE scheduler would for a single target.
+public class MultiCompressor {
+	private static final int MAX_ACTIVE_PROGRAM_COUNT = 200000,
+	                         BRANCHING_FACTOR = BrainfuckProgram.INSTRUCTIONS.length;
+
+	private static class Node {
+		final Node parent;
+		final int depth;
+		byte[] labels = new byte[0];
+		Node[] children = new Node[0];
+		// indices of the targets that end here
+		int[] targets = new int[0];
+		// length of the longest target below that has not been found
+		// yet, and number of such targets
+		int max_length, remaining = 0;
+
+		Node(Node parent, int depth) {
+			this.parent = parent;
+			this.depth = depth;
+			this.max_length = depth;
+		}
+
+		Node child(byte label) {
+			for (int i = 0; i < labels.length; i++)
+				if (labels[i] == label)
+					return children[i];
+			return null;
+		}
+
+		Node addChild(byte label) {
+			Node child = child(label);
+			if (child == null) {
+				child = new Node(this, depth + 1);
+				labels = Arrays.copyOf(labels, labels.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				labels[labels.length - 1] = label;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+
+	// a queued program and the node its output has led to
+	private static class Entry {
+		Program program;
+		Node node;
+
+		Entry(Program program, Node node) {
+			this.program = program;
+			this.node = node;
+		}
+	}
+
+	private long steps = 0;
+
+	public long steps() {
+		return steps;
+	}
+
+	// called when the first decompressor of xss[target] has been found
+	protected void found(int target, Program p) {
+	}
+
+	// decompressors of each of xss, null where there is none
+	public Program[] compress(byte[][] xss) {
+		Program[] results = new Program[xss.length];
+		Node root = new Node(null, 0);
+		int memory_size = 0;
+		for (int i = 0; i < xss.length; i++) {
+			Node node = root;
+			node.remaining++;
+			node.max_length = Math.max(node.max_length, xss[i].length);
+			for (byte x: xss[i]) {
+				node = node.addChild(x);
+				node.remaining++;
+				node.max_length = Math.max(node.max_length, xss[i].length);
+			}
+			node.targets = Arrays.copyOf(node.targets, node.targets.length + 1);
+			node.targets[node.targets.length - 1] = i;
+			memory_size = Math.max(memory_size, xss[i].length);
+		}
+
+		steps = 0;
+		Program empty = new BrainfuckProgram(memory_size);
+		// the empty program for the empty sequences
+		reached(root, empty, results);
+
+		BucketQueue<Entry> ps = new BucketQueue<Entry>(), to_be_extrapolated = new BucketQueue<Entry>();
+		int expansions = 0;
+		if (root.remaining > 0 && empty.nextSuccessorCost() != Integer.MAX_VALUE) {
+			ps.add(new Entry(empty, root), empty.nextSuccessorCost());
+			expansions++;
+		}
+
+		// ps is let go of on running out of memory; the targets not found
+		// by then have no decompressor
+		try {
+			while (!ps.isEmpty() && root.remaining > 0) {
+				Entry e = ps.peek();
+				Program p = e.program;
+				Node node = e.node;
+
+				if (node.remaining == 0) {
+					ps.poll();
+					if (p.finished())
+						expansions--;
+					continue;
+				}
+
+				if (p.finished()) {
+					int key = ps.peekKey();
+					Program q = p.nextSuccessor();
+					int next_key = p.nextSuccessorCost();
+					if (next_key != key) {
+						ps.poll();
+						if (next_key != Integer.MAX_VALUE)
+							ps.add(e, next_key);
+						else
+							expansions--;
+					}
+					if (q.illegal() || q.codeLength() > node.max_length)
+						continue;
+					p = q;
+					e = new Entry(q, node);
+				} else {
+					ps.poll();
+				}
+
+				p.step();
+				steps++;
+
+				if (p.outputLength() > node.depth) {
+					node = e.node = node.child(p.lastOutput());
+					if (node == null || node.remaining == 0)
+						continue;
+					reached(node, p, results);
+				}
+
+				if (node.remaining > 0 && !p.illegal() && !p.looping() && p.executionTime() <= Util.iexp2(node.max_length)) {
+					if (!p.finished())
+						ps.add(e, p.cost());
+					else
+						to_be_extrapolated.add(e, p.cost());
+				}
+
+				// maybe add more to the fringe
+				Entry r;
+				while (ps.size() + expansions*(BRANCHING_FACTOR - 1) < MAX_ACTIVE_PROGRAM_COUNT - BRANCHING_FACTOR
+				       && (r = to_be_extrapolated.poll()) != null) {
+					int cost = r.program.nextSuccessorCost();
+					if (cost != Integer.MAX_VALUE && r.node.remaining > 0) {
+						ps.add(r, cost);
+						expansions++;
+					}
+				}
+			}
+		} catch (OutOfMemoryError e) {
+			System.err.println(ps.size()+" programs active");
+			System.err.println(to_be_extrapolated.size()+" programs to be extrapolated");
+			Entry r; int k = 0;
+			while ((r = ps.poll()) != null && k++ < 50) {
+				System.err.println("t:"+r.program.executionTime()+"\t$:"+r.program.cost()+"\t"+r.program);
+			}
+			ps = null;
+			e.printStackTrace();
+		}
+		return results;
+	}
+
+	// p has output the path to node: it decompresses the targets that
+	// end there, unless they already have decompressors or p is out of
+	// their bounds.  the bounds are Compressor's: no more code than the
+	// target has bytes, and at most 2^length steps before the one that
+	// output the last byte.  a program out of bounds for a short target
+	// may still be kept for a longer one.
+	private void reached(Node node, Program p, Program[] results) {
+		if (node.targets.length == 0 || results[node.targets[0]] != null)
+			return;
+		if (p.codeLength() > node.depth || p.executionTime() - 1 > Util.iexp2(node.depth))
+			return;
+		Program decompressor = ((BrainfuckProgram)p).snapshot();
+		for (int target: node.targets) {
+			results[target] = decompressor;
+			found(target, decompressor);
+		}
+		// the bounds above node come down to those of the targets left
+		for (Node n = node; n != null; n = n.parent) {
+			n.remaining -= node.targets.length;
+			n.max_length = n.depth;
+			for (Node child: n.children)
+				if (child.remaining > 0)
+					n.max_length = Math.max(n.max_length, child.max_length);
+		}
+	}
+
+	// each decompressor must output its target within its bounds, and a
+	// batch of one must go the same way as a STEPWISE search.  a batch
+	// should take fewer steps than its targets one by one.
+	public static void test() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 0, 1, 2, 3 },
+			{ 0, 0, 1, 1 },
+			{ 1, 2, 4, 8, 16 },
+			{ 0, 1, 2, 3 },
+			{ 3, 3, 3, 3 },
+			{ 1, 1, 1 },
+			{},
+		};
+		int memory_size = 6;
+		MultiCompressor batch = new MultiCompressor();
+		Program[] ps = batch.compress(xss);
+		long separate_steps = 0;
+		for (int i = 0; i < xss.length; i++) {
+			MultiCompressor single = new MultiCompressor();
+			Program p = single.compress(new byte[][]{ xss[i] })[0];
+			Compressor d = new Compressor(Compressor.Scheduler.STEPWISE);
+			Program r = d.compress(xss[i]);
+			separate_steps += d.steps();
+			if (ps[i] == null ? r != null : ps[i].outputLength() != xss[i].length || !outputs(ps[i].toString(), memory_size, xss[i])
+			    || !String.valueOf(p).equals(String.valueOf(r)) || single.steps() != d.steps()) {
+				System.err.println("sequence: "+Arrays.toString(xss[i]));
+				System.err.println("batch:    "+ps[i]);
+				System.err.println("alone:    "+p+" after "+single.steps()+" steps");
+				System.err.println("stepwise: "+r+" after "+d.steps()+" steps");
+				System.exit(1);
+			}
+		}
+		if (batch.steps() >= separate_steps) {
+			System.err.println("batch took "+batch.steps()+" steps, "+separate_steps+" separately");
+			System.exit(1);
+		}
+
+		// a program kept for the long target must not be credited to
+		// the short one it outputs on the way if it is out of its bounds
+		byte[][] nested = { { 3, 3 }, { 3, 3, 3, 3, 3, 3, 3, 3 } };
+		ps = new MultiCompressor().compress(nested);
+		for (int i = 0; i < nested.length; i++) {
+			Program r = new Compressor(Compressor.Scheduler.STEPWISE).compress(nested[i]);
+			if (ps[i] == null ? r != null : r == null || ps[i].codeLength() > nested[i].length
+			                                 || !outputs(ps[i].toString(), nested[1].length, nested[i])) {
+				System.err.println("sequence: "+Arrays.toString(nested[i]));
+				System.err.println("batch:    "+ps[i]);
+				System.err.println("stepwise: "+r);
+				System.exit(1);
+			}
+		}
+	}
+
+	// whether the given program outputs xs when run from scratch
+	private static boolean outputs(String program, int memory_size, byte[] xs) {
+		Program p = new BrainfuckProgram(program.getBytes(), memory_size);
+		while (p.outputLength() < xs.length && !p.finished() && !p.illegal() && !p.looping()) {
+			p.step();
+			if (!p.incrementallyConsistentWith(xs))
+				return false;
+		}
+		return p.outputLength() == xs.length;
+	}
+}
@@ -0,0 +1,313 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// runs Compressor's search on several threads by splitting the program
+// space by instruction prefix: each partition is the subtree below one
+// program of prefix_length instructions, and is searched on its own.
+// partitions are handed out to the threads of a work-stealing pool.
+//
+// a single search takes up programs in order of cost and returns the
+// first decompressor it comes to.  so each partition's search keeps
+// track of the highest cost it has got to, as of Compressor.queuedCost(),
+// and the winner is the decompressor found at the lowest such cost, ties
+// going to the partition that comes first and then to fewer steps.  the
+// cost got to only grows, so a partition's search is abandoned once it
+// is past that of the best decompressor found so far, which is shared.
+// the outcome does not depend on timing or thread count.
+//
+// the cost() of the decompressor itself would not do: output lowers it,
+// and for 0, 1, ..., 5 the partitions find .>^.^.^! at cost 1 while
+// Compressor.compress returns .^.^.^.^.^. at cost 3.  by the cost got
+// to, the result is that of Compressor.compress for the sequences in
+// the tests, such as .^[.^] for 0, 1, ..., 9, but not always: a single
+// search limits the active programs of all partitions together, which
+// changes the order in which it takes up those of each.  for 1, 2, 4,
+// 8, 16 it returns ^.[>++.], which the search of its partition does not
+// come to first, and the result here is ^.^.>+[*.].
+//
+// a partition whose search takes split_steps steps, twice that for each
+// time it was split from another, is split: the search is given up, and
+// the partitions one instruction longer are searched in its place,
+// starting from the cost it had got to.  their cost got to is then never
+// below the one it had, so when a partition is abandoned for the best so
+// far, the pieces it would have been split into could not have beaten
+// it either.  whether a partition is split thus depends only on its own
+// search, and the outcome still not on timing; it is that of the
+// partitions as split, which isn't always that of the partitions
+// unsplit.  the pieces go to idle threads like any other task, which
+// keeps them busy when a few partitions take most of the steps, but
+// only after the partitions that start from a lower cost.
+public class ParallelCompressor {
+	// steps after which a partition's search is split, by default
+	static final long SPLIT_STEPS = 1 << 22;
+
+	private final int thread_count, prefix_length;
+	private final long split_steps;
+
+	public ParallelCompressor(int thread_count) {
+		this(thread_count, 2);
+	}
+
+	public ParallelCompressor(int thread_count, int prefix_length) {
+		this(thread_count, prefix_length, SPLIT_STEPS);
+	}
+
+	public ParallelCompressor(int thread_count, int prefix_length, long split_steps) {
+		this.thread_count = thread_count;
+		this.prefix_length = prefix_length;
+		this.split_steps = split_steps;
+	}
+
+	public Program compress(byte[] xs) {
+		return compress(xs, 0, xs.length);
+	}
+
+	public Program compress(byte[] xs, int a, int b) {
+		List<Program> roots = new ArrayList<Program>();
+		Program p = partition(new BrainfuckProgram(b-a), prefix_length, xs, roots);
+		if (p != null)
+			return p;
+
+		final AtomicReference<Result> best = new AtomicReference<Result>();
+		final Queue<Partition> pending = new PriorityBlockingQueue<Partition>(roots.size(), Partition.ORDER);
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int i = 0; i < roots.size(); i++) {
+			pending.add(new Partition(roots.get(i), new int[]{ i }, 0));
+			tasks.add(task(pending, xs, best));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(thread_count);
+		try {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdownNow();
+		}
+
+		Result result = best.get();
+		return result == null ? null : result.program;
+	}
+
+	// collect the programs depth instructions longer than p that extend
+	// it, running p and the shorter ones as Compressor would.  returns a
+	// decompressor if one of those turns out to be one.
+	static Program partition(Program p, int depth, byte[] xs, List<Program> partitions) {
+		if (depth == 0) {
+			partitions.add(p);
+			return null;
+		}
+
+		Compressor c = new Compressor();
+		while (!p.finished()) {
+			p.step();
+			if (!p.incrementallyConsistentWith(xs))
+				return null;
+			if (p.outputLength() == xs.length)
+				return p;
+			if (p.illegal() || c.runaway(p, xs.length) != null)
+				return null;
+		}
+
+		Program q;
+		while ((q = p.nextSuccessor()) != null) {
+			if (q.illegal() || q.codeLength() > xs.length)
+				continue;
+			Program r = partition(q, depth - 1, xs, partitions);
+			if (r != null)
+				return r;
+		}
+		return null;
+	}
+
+	// search the first pending partition, then one for each piece it is
+	// split into, if it is.  there is a task for each partition added to
+	// pending, so there is always one to take.
+	private RecursiveAction task(final Queue<Partition> pending, final byte[] xs, final AtomicReference<Result> best) {
+		return new RecursiveAction() {
+			@Override
+			protected void compute() {
+				List<Partition> children = new ArrayList<Partition>();
+				search(pending.poll(), xs, best, children);
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (Partition child: children) {
+					pending.add(child);
+					tasks.add(task(pending, xs, best));
+				}
+				invokeAll(tasks);
+			}
+		};
+	}
+
+	private void search(Partition partition, byte[] xs, AtomicReference<Result> best, List<Partition> children) {
+		Result result = new PartitionSearch(partition, best, split_steps).find(xs, children), current;
+		if (result == null)
+			return;
+		do {
+			current = best.get();
+			if (current != null && !result.betterThan(current))
+				return;
+		} while (!best.compareAndSet(current, result));
+	}
+
+	// the programs that extend root.  path is the index of each partition
+	// among those it was split from, and level the cost the search had
+	// got to when it was split off.
+	static class Partition {
+		// in order of the cost their searches start from, as a single
+		// search would take them up, so that the pieces of a partition
+		// that goes on and on don't hold up the rest
+		public static final Comparator<Partition> ORDER = new Comparator<Partition>() {
+			@Override
+			public int compare(Partition a, Partition b) {
+				if (a.level != b.level)
+					return Integer.compare(a.level, b.level);
+				return Arrays.compare(a.path, b.path);
+			}
+		};
+
+		public final Program root;
+		public final int[] path;
+		public final int level;
+
+		public Partition(Program root, int[] path, int level) {
+			this.root = root;
+			this.path = path;
+			this.level = level;
+		}
+
+		public Partition child(Program root, int index, int level) {
+			int[] path = Arrays.copyOf(this.path, this.path.length + 1);
+			path[this.path.length] = index;
+			return new Partition(root, path, level);
+		}
+	}
+
+	// the search of one partition, which keeps track of the highest cost
+	// it has got to and gives up once it can't beat bound, or once it
+	// has taken split_steps steps
+	static class PartitionSearch extends Compressor {
+		private final Partition partition;
+		private final AtomicReference<Result> bound;
+		private final long split_steps;
+		private int level;
+		private boolean split = false;
+
+		PartitionSearch(Partition partition, AtomicReference<Result> bound, long split_steps) {
+			this.partition = partition;
+			this.bound = bound;
+			// twice as many for each time the partition was split, or
+			// the pieces of a search that goes on and on are split again
+			// and again
+			this.split_steps = split_steps << Math.min(partition.path.length - 1, Long.numberOfLeadingZeros(split_steps) - 1);
+			Program root = partition.root;
+			this.level = Math.max(partition.level, root.finished() ? root.nextSuccessorCost() : root.cost());
+		}
+
+		@Override
+		protected boolean abandon(long steps) {
+			level = Math.max(level, queuedCost());
+			Result result = bound.get();
+			if (result != null && !new Result(null, level, partition.path, steps).betterThan(result))
+				return true;
+			return split = steps >= split_steps;
+		}
+
+		public int level() {
+			return level;
+		}
+
+		// the first decompressor in the partition, or null.  a search
+		// that takes split_steps steps is given up, and the partitions one
+		// instruction longer are added to children instead, at the cost
+		// it had got to; then the root is returned if it is a
+		// decompressor after all.
+		Result find(byte[] xs, List<Partition> children) {
+			Program p = search(((BrainfuckProgram)partition.root).snapshot(), xs);
+			if (split) {
+				List<Program> roots = new ArrayList<Program>();
+				p = partition(((BrainfuckProgram)partition.root).snapshot(), 1, xs, roots);
+				if (p == null)
+					for (int i = 0; i < roots.size(); i++)
+						children.add(partition.child(roots.get(i), i, level));
+			}
+			return p == null ? null : new Result(p, level, partition.path, steps());
+		}
+	}
+
+	static class Result {
+		public final Program program;
+		// the highest queuedCost() of the search up to the find
+		public final int cost;
+		public final int[] partition;
+		public final long steps;
+
+		public Result(Program program, int cost, int[] partition, long steps) {
+			this.program = program;
+			this.cost = cost;
+			this.partition = partition;
+			this.steps = steps;
+		}
+
+		public boolean betterThan(Result that) {
+			if (this.cost != that.cost)
+				return this.cost < that.cost;
+			int c = Arrays.compare(this.partition, that.partition);
+			if (c != 0)
+				return c < 0;
+			return this.steps < that.steps;
+		}
+	}
+
+	// check that the outcome doesn't depend on the number of threads, and
+	// that it is what Compressor finds
+	public static void test() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3, 4, 5 },
+			{ 3, 3, 3, 3 },
+			{ 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+			{ 1, 2, 4 },
+			{ 2, 4, 6, 8, 10, 12 },
+		};
+		for (byte[] xs: xss) {
+			Program p = new ParallelCompressor(1).compress(xs);
+			Program q = new ParallelCompressor(4).compress(xs);
+			Program r = new Compressor().compress(xs);
+			if (!String.valueOf(p).equals(String.valueOf(q)) || !String.valueOf(p).equals(String.valueOf(r))) {
+				System.err.println("sequence:   "+Arrays.toString(xs));
+				System.err.println("1 thread:   "+p);
+				System.err.println("4 threads:  "+q);
+				System.err.println("sequential: "+r);
+				System.exit(1);
+			}
+		}
+
+		// where the limit on active programs tells, still a decompressor
+		byte[] xs = { 1, 2, 4, 8, 16 };
+		Program p = new ParallelCompressor(1).compress(xs);
+		Program q = new ParallelCompressor(4).compress(xs);
+		if (!String.valueOf(p).equals(String.valueOf(q)) || p == null || !Compressor.outputs(p.toString(), xs.length, xs)) {
+			System.err.println("sequence:   "+Arrays.toString(xs));
+			System.err.println("1 thread:   "+p);
+			System.err.println("4 threads:  "+q);
+			System.exit(1);
+		}
+
+		// with partitions split after a few steps, the outcome is still
+		// a decompressor that doesn't depend on the number of threads
+		for (byte[] ys: new byte[][]{ xss[0], xss[2], xs }) {
+			p = new ParallelCompressor(1, 2, 500).compress(ys);
+			q = new ParallelCompressor(4, 2, 500).compress(ys);
+			if (!String.valueOf(p).equals(String.valueOf(q)) || p == null || !Compressor.outputs(p.toString(), ys.length, ys)) {
+				System.err.println("sequence:   "+Arrays.toString(ys));
+				System.err.println("1 thread:   "+p);
+				System.err.println("4 threads:  "+q);
+				System.exit(1);
+			}
+		}
+	}
+}
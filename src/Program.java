@@ -25,7 +25,33 @@ public abstract class Program implements Comparable<Program> {
 	public abstract boolean finished();
 	public abstract boolean illegal();
 
+	// for a finished program, a hash of the state that determines what
+	// its extensions will do, or 0 if that state is not captured
+	public long stateHash() {
+		return 0;
+	}
+
+	// whether the program is known to be stuck in a loop without output
+	public boolean looping() {
+		return false;
+	}
+
 	public abstract void step();
+
+	// step at most max_steps times, stopping early once the cost may
+	// have changed for any other reason than the passing of time, i.e.
+	// when the program finishes, becomes illegal or produces output.
+	// steps are counted in execution time, which a single step() may
+	// advance by more than one; returns the execution time taken.
+	public int step(int max_steps) {
+		int t0 = executionTime(), c = cost(), n = outputLength();
+		while (executionTime() - t0 < max_steps && !finished() && !illegal() && !looping()) {
+			step();
+			if (outputLength() != n || cost() != c)
+				break;
+		}
+		return executionTime() - t0;
+	}
 	public abstract byte lastOutput();
 	
 	public abstract int cost();
@@ -47,4 +73,12 @@ public abstract class Program implements Comparable<Program> {
 	// respect (i.e. execution state and everything).
 	public abstract Program[] successors();
 
+	// the same successors, one at a time: returns the next one that has
+	// not been generated yet, or null if there are no more
+	public abstract Program nextSuccessor();
+
+	// cost() of the successor that nextSuccessor() would return, or
+	// Integer.MAX_VALUE if there is none
+	public abstract int nextSuccessorCost();
+
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+
+// fixed-size slots for program states, allocated off the java heap (so
+// mind -XX:MaxDirectMemorySize) and addressed by int handles.  slots of
+// discarded programs are reused before new ones are taken.
+public class ProgramArena {
+	private static final int CHUNK_SIZE = 1 << 30;
+
+	private final int slot_size, slots_per_chunk;
+	private final int capacity; // in slots
+	private final ByteBuffer[] chunks;
+	private int allocated = 0; // slots taken so far, including freed ones
+
+	private int[] free = new int[1024];
+	private int free_count = 0;
+
+	public ProgramArena(long budget, int slot_size) {
+		this.slot_size = slot_size;
+		this.slots_per_chunk = CHUNK_SIZE / slot_size;
+		this.capacity = (int)Math.min(budget / slot_size, Integer.MAX_VALUE);
+		this.chunks = new ByteBuffer[(capacity + slots_per_chunk - 1) / slots_per_chunk];
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	// number of slots in use
+	public int size() {
+		return allocated - free_count;
+	}
+
+	public int slotSize() {
+		return slot_size;
+	}
+
+	public int allocate() {
+		if (free_count > 0)
+			return free[--free_count];
+		if (allocated == capacity)
+			throw new OutOfMemoryError("program arena full ("+capacity+" programs)");
+
+		int handle = allocated++;
+		int chunk = handle / slots_per_chunk;
+		if (chunks[chunk] == null) {
+			int slots = Math.min(slots_per_chunk, capacity - chunk*slots_per_chunk);
+			chunks[chunk] = ByteBuffer.allocateDirect(slots*slot_size);
+		}
+		return handle;
+	}
+
+	public void free(int handle) {
+		if (free_count == free.length) {
+			int[] more = new int[2*free.length];
+			System.arraycopy(free, 0, more, 0, free_count);
+			free = more;
+		}
+		free[free_count++] = handle;
+	}
+
+	public ByteBuffer chunk(int handle) {
+		return chunks[handle / slots_per_chunk];
+	}
+
+	public int offset(int handle) {
+		return (handle % slots_per_chunk) * slot_size;
+	}
+}
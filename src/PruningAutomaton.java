@@ -0,0 +1,162 @@
+// the rules by which BrainfuckProgram skips pointless successors,
+// compiled into a deterministic automaton over instruction sequences.
+// a program carries the state the automaton is in after reading its
+// instructions, and the state determines which instructions may follow.
+//
+// the state is made up of the last instruction and what is known about
+// the machine after running the instructions in order from a zeroed
+// memory.  knowledge is lost at the first loop, jump or pointer load, so
+// jumps back into earlier code may make a pruned program meaningful
+// after all.  the rules are heuristics in that sense.
+public class PruningAutomaton {
+	private static final byte[] INSTRUCTIONS = BrainfuckProgram.INSTRUCTIONS;
+
+	// what is known about the machine
+	private static final int ZERO_AT_ORIGIN = 0, // memory is all zero and memory_pointer is 0
+	                         ZERO = 1,           // memory is all zero
+	                         AT_ORIGIN = 2,      // memory_pointer is 0
+	                         UNKNOWN = 3,
+	                         KNOWLEDGE_COUNT = 4;
+
+	private static final byte[][] complement_pairs = {
+		{ 'v', '^' }, { '<', '>' }, { '+', '-' },
+		{ '*', '/' }, { 'x', 'x' }, { '[', ']' },
+		{ '@', '@' },
+	};
+
+	// index into INSTRUCTIONS of each instruction, or -1
+	private static final int[] index = new int[256];
+
+	// state = knowledge * (INSTRUCTIONS.length + 1) + index of last instruction + 1
+	private static final int STATE_COUNT = KNOWLEDGE_COUNT * (INSTRUCTIONS.length + 1);
+	public static final int START = state(ZERO_AT_ORIGIN, -1);
+
+	// bit i of allowed[s] is set if INSTRUCTIONS[i] may follow in state s
+	private static final long[] allowed = new long[STATE_COUNT];
+	private static final int[] transitions = new int[STATE_COUNT * INSTRUCTIONS.length];
+
+	static {
+		java.util.Arrays.fill(index, -1);
+		for (int i = 0; i < INSTRUCTIONS.length; i++)
+			index[INSTRUCTIONS[i] & 0xff] = i;
+
+		for (int knowledge = 0; knowledge < KNOWLEDGE_COUNT; knowledge++) {
+			for (int last = -1; last < INSTRUCTIONS.length; last++) {
+				int s = state(knowledge, last);
+				for (int i = 0; i < INSTRUCTIONS.length; i++) {
+					byte b = INSTRUCTIONS[i];
+					if (!pruned(knowledge, last < 0 ? 0 : INSTRUCTIONS[last], b)) {
+						allowed[s] |= 1L << i;
+						transitions[s * INSTRUCTIONS.length + i] = state(learn(knowledge, b), i);
+					} else {
+						// only reached by programs constructed from a
+						// given instruction sequence
+						transitions[s * INSTRUCTIONS.length + i] = state(UNKNOWN, i);
+					}
+				}
+			}
+		}
+	}
+
+	private static int state(int knowledge, int last) {
+		return knowledge * (INSTRUCTIONS.length + 1) + last + 1;
+	}
+
+	// the state after reading instruction in state s
+	public static int next(int s, byte instruction) {
+		int i = index[instruction & 0xff];
+		if (i < 0)
+			return state(UNKNOWN, -1);
+		return transitions[s * INSTRUCTIONS.length + i];
+	}
+
+	// the state after reading instructions from the start
+	public static int run(byte[] instructions) {
+		int s = START;
+		for (byte instruction: instructions)
+			s = next(s, instruction);
+		return s;
+	}
+
+	// mask over indices into INSTRUCTIONS of the instructions that may follow
+	public static long allowed(int s) {
+		return allowed[s];
+	}
+
+	private static boolean isBinaryOperator(byte b) {
+		return "+-*/%|&x".indexOf(b) >= 0;
+	}
+
+	private static boolean pruned(int knowledge, byte a, byte b) {
+		// undo or redo the previous instruction
+		// (due to overflow, truncation and instruction pointer
+		// teleportation, these aren't always pointless, but meh)
+		for (byte[] complements: complement_pairs) {
+			if (b == complements[0] && a == complements[1] ||
+			    b == complements[1] && a == complements[0])
+				return true;
+		}
+
+		switch (knowledge) {
+		case ZERO_AT_ORIGIN:
+			// '<' and operators are illegal, '[' skips its body and '@'
+			// does nothing.  ('!' would start over, but after output, as
+			// in ".!", that is a way to repeat it.)
+			return b == '<' || isBinaryOperator(b) || b == '[' || b == ']' || b == '@';
+		case ZERO:
+			// operators compute zero or are illegal, '[' skips its body
+			return isBinaryOperator(b) || b == '[' || b == ']';
+		case AT_ORIGIN:
+			return b == '<' || isBinaryOperator(b) || b == ']';
+		default:
+			return false;
+		}
+	}
+
+	// knowledge after running b
+	private static int learn(int knowledge, byte b) {
+		switch (knowledge) {
+		case ZERO_AT_ORIGIN:
+			if (b == '.') return ZERO_AT_ORIGIN;
+			if (b == '^' || b == 'v') return AT_ORIGIN;
+			if (b == '>') return ZERO;
+			return UNKNOWN;
+		case ZERO:
+			if (b == '.' || b == '<' || b == '>') return ZERO;
+			if (b == '@') return ZERO_AT_ORIGIN;
+			return UNKNOWN;
+		case AT_ORIGIN:
+			if (b == '.' || b == '^' || b == 'v') return AT_ORIGIN;
+			return UNKNOWN;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	// instructions that may and may not follow the given programs
+	public static void test() {
+		String[][] cases = {
+			// program, allowed, pruned
+			{ "", ".^v>!", "<+-*/%|&x[]@" },
+			{ ".", ".^v>!", "<+[]@" },
+			{ "^", ".^>[@!", "v<+*]" },
+			{ "^>", ".^v>[]@!+-*/%|&x", "<" },
+			{ ">", ".^v>@!", "<+[]" },
+			{ ">@", ".^v>!", "<+[]@" },
+			{ "^[", ".^v<>@!+", "]" },
+			{ "^[>^<v]", ".^v<>@!", "[" },
+			{ "^>@", ".^v<>[]!", "@" },
+		};
+		for (String[] c: cases) {
+			int s = run(c[0].getBytes());
+			for (int k = 1; k <= 2; k++) {
+				for (byte b: c[k].getBytes()) {
+					if (((allowed(s) >>> index[b]) & 1) != (k == 1 ? 1 : 0)) {
+						System.err.println("after \""+c[0]+"\", '"+(char)b+"' should be "+(k == 1 ? "allowed" : "pruned"));
+						System.exit(1);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+// remembers the decompressors found for sequences, so that compressing
+// a sequence again costs a rerun of its decompressor rather than a
+// search.  entries are kept in memory in least recently used order, at
+// most max_entries of them, and optionally in a file: each new entry is
+// appended to it, and when the file holds twice as many entries as
+// memory, or on close(), it is rewritten from memory.  safe for use by several threads.
+public class ResultCache {
+	private static final int MAGIC = 0x62667263, // "bfrc"
+	                         VERSION = 1;
+
+	public static class Entry {
+		public final String program;
+		public final int cost, memory_size;
+
+		Entry(String program, int cost, int memory_size) {
+			this.program = program;
+			this.cost = cost;
+			this.memory_size = memory_size;
+		}
+
+		// the program run until it has output n bytes, or null if it
+		// doesn't get there
+		public Program run(int n) {
+			Program p = new BrainfuckProgram(program.getBytes(), memory_size);
+			while (p.outputLength() < n && !p.finished() && !p.illegal() && !p.looping())
+				p.step(Integer.MAX_VALUE);
+			return p.outputLength() < n ? null : p;
+		}
+	}
+
+	private final int max_entries;
+	private final File file;
+	private DataOutputStream log = null;
+	private int logged = 0; // entries in file
+
+	// sequences are keyed by their contents
+	private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+			if (size() <= max_entries)
+				return false;
+			evictions++;
+			return true;
+		}
+	};
+
+	private long hits = 0, prefix_hits = 0, misses = 0, evictions = 0;
+
+	public ResultCache(int max_entries) {
+		this.max_entries = max_entries;
+		this.file = null;
+	}
+
+	// a cache backed by file, starting out with what it holds
+	public ResultCache(int max_entries, File file) throws IOException {
+		this.max_entries = max_entries;
+		this.file = file;
+		if (file.exists() && file.length() > 0)
+			load();
+		rewrite();
+	}
+
+	private void load() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file+" is not a result cache");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException(file+" is a result cache of unsupported version "+version);
+			while (true) {
+				byte[] xs;
+				Entry entry;
+				try {
+					xs = new byte[in.readInt()];
+					in.readFully(xs);
+					entry = new Entry(in.readUTF(), in.readInt(), in.readInt());
+				} catch (EOFException e) {
+					// the last entry may have been cut short
+					break;
+				}
+				entries.put(ByteBuffer.wrap(xs), entry);
+			}
+		}
+		evictions = 0;
+	}
+
+	// write the entries in memory to a new file, and append from there
+	private void rewrite() throws IOException {
+		if (log != null)
+			log.close();
+		File temporary = new File(file.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Map.Entry<ByteBuffer, Entry> e: entries.entrySet())
+				write(out, e.getKey().array(), e.getValue());
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logged = entries.size();
+		log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+
+	private static void write(DataOutputStream out, byte[] xs, Entry entry) throws IOException {
+		out.writeInt(xs.length);
+		out.write(xs);
+		out.writeUTF(entry.program);
+		out.writeInt(entry.cost);
+		out.writeInt(entry.memory_size);
+	}
+
+	// the entry for xs, or null
+	public synchronized Entry get(byte[] xs) {
+		Entry entry = entries.get(ByteBuffer.wrap(xs));
+		if (entry != null)
+			hits++;
+		else
+			misses++;
+		return entry;
+	}
+
+	// the entry for the longest proper prefix of xs that has one, or null
+	public synchronized Entry getPrefix(byte[] xs) {
+		for (int n = xs.length - 1; n > 0; n--) {
+			Entry entry = entries.get(ByteBuffer.wrap(xs, 0, n).slice());
+			if (entry != null) {
+				prefix_hits++;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	public synchronized void put(byte[] xs, Program p) {
+		xs = xs.clone();
+		Entry entry = new Entry(p.toString(), p.cost(), p.memorySize());
+		entries.put(ByteBuffer.wrap(xs), entry);
+		if (file == null)
+			return;
+		try {
+			write(log, xs, entry);
+			log.flush();
+			if (++logged > 2 * max_entries)
+				rewrite();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// rewrite the file in least recently used order, so that it loads
+	// back into the same cache
+	public synchronized void close() throws IOException {
+		if (file == null)
+			return;
+		rewrite();
+		log.close();
+		log = null;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long prefixHits() {
+		return prefix_hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return entries.size()+" entries, "+hits+" hits, "+prefix_hits+" prefix hits, "+misses+" misses, "+evictions+" evictions";
+	}
+
+	// cached results must match fresh ones, survive in the file and be
+	// evicted least recently used first
+	public static void test() {
+		try {
+			File file = File.createTempFile("results", ".bin");
+			byte[][] xss = {
+				{ 0, 1, 2, 3, 4, 5 },
+				{ 1, 2, 4, 8, 16 },
+				{ 0, 1, 2, 3, 4, 5, 6 },
+			};
+			ResultCache cache = new ResultCache(2, file);
+			Compressor c = new Compressor(), cached = new Compressor();
+			cached.setResultCache(cache);
+			// the first sequence is evicted by the third, and the
+			// third by the first once the other two have been hit
+			for (int i: new int[]{ 0, 1, 2, 2, 1, 0 }) {
+				byte[] xs = xss[i];
+				long hits = cache.hits();
+				Program p = c.compress(xs), q = cached.compress(xs);
+				if (!String.valueOf(p).equals(String.valueOf(q)) || p.cost() != q.cost()
+				    || cache.hits() > hits && cached.steps() != 0) {
+					System.err.println("sequence: "+Arrays.toString(xs));
+					System.err.println("searched: "+p+" at cost "+p.cost());
+					System.err.println("cached:   "+q+" at cost "+q.cost()+" after "+cached.steps()+" steps");
+					System.exit(1);
+				}
+			}
+			if (cache.hits() != 2 || cache.misses() != 4 || cache.evictions() != 2 || cache.size() != 2) {
+				System.err.println("result cache: "+cache);
+				System.exit(1);
+			}
+			Entry prefix = cache.getPrefix(new byte[]{ 0, 1, 2, 3, 4, 5, 6 });
+			if (prefix == null || prefix.run(6) == null || cache.prefixHits() != 1) {
+				System.err.println("no prefix hit for a cached sequence: "+cache);
+				System.exit(1);
+			}
+			// a warm start from the decompressor of the prefix must
+			// find some decompressor, sooner than a full search
+			byte[] longer = { 1, 2, 4, 8, 16, 32, 64 };
+			cached.setWarmStart(true);
+			Program p = c.compress(longer), q = cached.compress(longer);
+			if (q == null || !q.incrementallyConsistentWith(longer) || q.outputLength() != longer.length
+			    || cached.steps() >= c.steps()) {
+				System.err.println("searched:     "+p+" after "+c.steps()+" steps");
+				System.err.println("warm started: "+q+" after "+cached.steps()+" steps");
+				System.exit(1);
+			}
+			cache.close();
+
+			ResultCache reloaded = new ResultCache(2, file);
+			Entry entry = reloaded.get(xss[0]);
+			if (reloaded.size() != 2 || entry == null || !entry.program.equals(String.valueOf(c.compress(xss[0])))
+			    || reloaded.get(xss[2]) != null) {
+				System.err.println("reloaded result cache: "+reloaded);
+				System.exit(1);
+			}
+			reloaded.close();
+			file.delete();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,10 @@
+// told how a Compressor's search is going.  both methods are called on
+// the searching thread with statistics that keep changing afterwards;
+// keep a SearchStatistics.copy() to hold on to them.
+public interface SearchListener {
+	// every so many rounds
+	public void progress(SearchStatistics statistics);
+
+	// at the end of the search, with its result (null if none)
+	public void finished(SearchStatistics statistics, Program result);
+}
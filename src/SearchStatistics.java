@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
+
+// counters kept by a Compressor's search while it runs: rounds, steps,
+// successors generated, the reasons programs were dropped for, and
+// histograms of the cost and code length of the programs dequeued.  a
+// search counts into its own instance in plain fields, and every so
+// many rounds flushes the counts to its SearchListener and as JFR
+// events; only then are the queue sizes and rates looked at.  the
+// histograms take in only every SAMPLE_INTERVAL-th round, and rounds
+// are counted by the search whether or not it keeps statistics, so
+// keeping them adds little to a round beyond the other counts.
+public class SearchStatistics {
+	public enum Pruning {
+		INCONSISTENT,   // output not a prefix of the sequence
+		ILLEGAL,
+		RUNAWAY_TIME,   // ran longer than 2^n steps
+		RUNAWAY_MEMORY, // uses more memory than the sequence is long
+		LOOPING,        // in a cycle that doesn't output
+		CODE_LENGTH,    // longer than the sequence
+		TRANSPOSITION,  // state reached before at no higher cost
+		DOOMED,         // failed on its first step, found by SiblingBatch
+	}
+
+	// costs and code lengths are counted in buckets of one, from
+	// COST_OFFSET below zero, the last bucket taking everything above
+	public static final int HISTOGRAM_SIZE = 64, COST_OFFSET = 16, SAMPLE_INTERVAL = 64;
+
+	long rounds = 0, steps = 0, expansions = 0;
+	final long[] pruned = new long[Pruning.values().length];
+	final long[] costs = new long[HISTOGRAM_SIZE], code_lengths = new long[HISTOGRAM_SIZE];
+
+	private final int length;
+	private final long start_nanos;
+	private long nanos = 0;
+	private int queue_size = 0, extrapolation_queue_size = 0, max_queue_size = 0, max_extrapolation_queue_size = 0;
+
+	// at the last flush, for rates over the last interval
+	private long last_nanos = 0, last_steps = 0, last_expansions = 0;
+	private double steps_per_second = 0, expansions_per_second = 0;
+
+	SearchStatistics(int length) {
+		this.length = length;
+		this.start_nanos = System.nanoTime();
+	}
+
+	private SearchStatistics(SearchStatistics that) {
+		this.length = that.length;
+		this.start_nanos = that.start_nanos;
+		rounds = that.rounds;
+		steps = that.steps;
+		expansions = that.expansions;
+		System.arraycopy(that.pruned, 0, pruned, 0, pruned.length);
+		System.arraycopy(that.costs, 0, costs, 0, costs.length);
+		System.arraycopy(that.code_lengths, 0, code_lengths, 0, code_lengths.length);
+		nanos = that.nanos;
+		queue_size = that.queue_size;
+		extrapolation_queue_size = that.extrapolation_queue_size;
+		max_queue_size = that.max_queue_size;
+		max_extrapolation_queue_size = that.max_extrapolation_queue_size;
+		last_nanos = that.last_nanos;
+		last_steps = that.last_steps;
+		last_expansions = that.last_expansions;
+		steps_per_second = that.steps_per_second;
+		expansions_per_second = that.expansions_per_second;
+	}
+
+	// whether anyone is recording the JFR events
+	static boolean eventsEnabled() {
+		return new Progress().isEnabled();
+	}
+
+	// count a round with the given cost and code length in the
+	// histograms.  the search passes every SAMPLE_INTERVAL-th round on to
+	// this, and sets rounds before each flush.
+	void sample(int cost, int code_length) {
+		costs[Math.max(0, Math.min(HISTOGRAM_SIZE - 1, cost + COST_OFFSET))]++;
+		code_lengths[Math.min(HISTOGRAM_SIZE - 1, code_length)]++;
+	}
+
+	void prune(Pruning reason) {
+		pruned[reason.ordinal()]++;
+	}
+
+	void prune(Pruning reason, int count) {
+		pruned[reason.ordinal()] += count;
+	}
+
+	// take in the queue sizes and the current step count, update the
+	// rates and pass everything on
+	void flush(long steps, int queue_size, int extrapolation_queue_size, SearchListener listener) {
+		this.steps = steps;
+		this.queue_size = queue_size;
+		this.extrapolation_queue_size = extrapolation_queue_size;
+		max_queue_size = Math.max(max_queue_size, queue_size);
+		max_extrapolation_queue_size = Math.max(max_extrapolation_queue_size, extrapolation_queue_size);
+		nanos = System.nanoTime() - start_nanos;
+		if (nanos > last_nanos) {
+			steps_per_second = (steps - last_steps) * 1e9 / (nanos - last_nanos);
+			expansions_per_second = (expansions - last_expansions) * 1e9 / (nanos - last_nanos);
+		}
+		last_nanos = nanos;
+		last_steps = steps;
+		last_expansions = expansions;
+
+		Progress event = new Progress();
+		if (event.isEnabled()) {
+			event.length = length;
+			event.steps = steps;
+			event.expansions = expansions;
+			event.steps_per_second = steps_per_second;
+			event.queue_size = queue_size;
+			event.extrapolation_queue_size = extrapolation_queue_size;
+			event.inconsistent = pruned[Pruning.INCONSISTENT.ordinal()];
+			event.illegal = pruned[Pruning.ILLEGAL.ordinal()];
+			event.runaway_time = pruned[Pruning.RUNAWAY_TIME.ordinal()];
+			event.runaway_memory = pruned[Pruning.RUNAWAY_MEMORY.ordinal()];
+			event.looping = pruned[Pruning.LOOPING.ordinal()];
+			event.code_length = pruned[Pruning.CODE_LENGTH.ordinal()];
+			event.transposition = pruned[Pruning.TRANSPOSITION.ordinal()];
+			event.doomed = pruned[Pruning.DOOMED.ordinal()];
+			event.commit();
+		}
+		if (listener != null)
+			listener.progress(this);
+	}
+
+	void finish(Program result, SearchListener listener) {
+		Finished event = new Finished();
+		if (event.isEnabled()) {
+			event.length = length;
+			event.steps = steps;
+			event.expansions = expansions;
+			event.seconds = nanos / 1e9;
+			event.result = String.valueOf(result);
+			event.commit();
+		}
+		if (listener != null)
+			listener.finished(this, result);
+	}
+
+	// a copy that doesn't change as the search goes on
+	public SearchStatistics copy() {
+		return new SearchStatistics(this);
+	}
+
+	public long rounds() {
+		return rounds;
+	}
+
+	public long steps() {
+		return steps;
+	}
+
+	// successors generated
+	public long expansions() {
+		return expansions;
+	}
+
+	public long pruned(Pruning reason) {
+		return pruned[reason.ordinal()];
+	}
+
+	public long[] costHistogram() {
+		return costs.clone();
+	}
+
+	public long[] codeLengthHistogram() {
+		return code_lengths.clone();
+	}
+
+	public int queueSize() {
+		return queue_size;
+	}
+
+	public int extrapolationQueueSize() {
+		return extrapolation_queue_size;
+	}
+
+	public int maxQueueSize() {
+		return max_queue_size;
+	}
+
+	public int maxExtrapolationQueueSize() {
+		return max_extrapolation_queue_size;
+	}
+
+	public double seconds() {
+		return nanos / 1e9;
+	}
+
+	// over the interval between the last two flushes
+	public double stepsPerSecond() {
+		return steps_per_second;
+	}
+
+	public double expansionsPerSecond() {
+		return expansions_per_second;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d rounds, %d steps, %d expansions in %.2f s (%.0f steps/s, %.0f expansions/s)%n",
+		                        rounds, steps, expansions, seconds(), steps_per_second, expansions_per_second));
+		sb.append("queues: "+queue_size+" active (at most "+max_queue_size+"), "+extrapolation_queue_size
+		          +" to be extrapolated (at most "+max_extrapolation_queue_size+")\n");
+		sb.append("pruned:");
+		for (Pruning reason: Pruning.values())
+			sb.append(" "+reason.name().toLowerCase()+" "+pruned[reason.ordinal()]);
+		sb.append("\nof every "+SAMPLE_INTERVAL+"th round, costs from "+(-COST_OFFSET)+": "+trimmed(costs));
+		sb.append("\nand code lengths: "+trimmed(code_lengths));
+		return sb.toString();
+	}
+
+	private static String trimmed(long[] histogram) {
+		int n = histogram.length;
+		while (n > 0 && histogram[n - 1] == 0)
+			n--;
+		return Arrays.toString(Arrays.copyOf(histogram, n));
+	}
+
+	@Name("scaryfingers.SearchProgress")
+	@Label("Search Progress")
+	@Category("Scaryfingers")
+	static class Progress extends Event {
+		@Label("Sequence Length") int length;
+		@Label("Steps") long steps;
+		@Label("Expansions") long expansions;
+		@Label("Steps per Second") double steps_per_second;
+		@Label("Active Programs") int queue_size;
+		@Label("Programs to Be Extrapolated") int extrapolation_queue_size;
+		@Label("Pruned as Inconsistent") long inconsistent;
+		@Label("Pruned as Illegal") long illegal;
+		@Label("Pruned for Running Too Long") long runaway_time;
+		@Label("Pruned for Using Too Much Memory") long runaway_memory;
+		@Label("Pruned as Looping") long looping;
+		@Label("Pruned for Code Length") long code_length;
+		@Label("Pruned as Transpositions") long transposition;
+		@Label("Pruned as Doomed") long doomed;
+	}
+
+	@Name("scaryfingers.SearchFinished")
+	@Label("Search Finished")
+	@Category("Scaryfingers")
+	static class Finished extends Event {
+		@Label("Sequence Length") int length;
+		@Label("Steps") long steps;
+		@Label("Expansions") long expansions;
+		@Label("Seconds") double seconds;
+		@Label("Result") String result;
+	}
+
+	// the counts must add up, and the events must reach a recording
+	public static void test() {
+		byte[] xs = { 0, 1, 2, 3, 4, 5 };
+		final SearchStatistics[] last = new SearchStatistics[1];
+		final int[] calls = new int[2];
+		final long[] finished_steps = new long[1];
+		SearchListener listener = new SearchListener() {
+			@Override
+			public void progress(SearchStatistics statistics) {
+				calls[0]++;
+			}
+
+			@Override
+			public void finished(SearchStatistics statistics, Program result) {
+				calls[1]++;
+				finished_steps[0] += statistics.steps();
+				last[0] = statistics.copy();
+			}
+		};
+		Compressor c = new Compressor();
+		c.setListener(listener);
+
+		Path file;
+		int events = 0;
+		try (Recording recording = new Recording()) {
+			recording.enable(Progress.class);
+			recording.enable(Finished.class);
+			recording.start();
+			c.compress(xs);
+			recording.stop();
+			file = Files.createTempFile("search", ".jfr");
+			recording.dump(file);
+			for (RecordedEvent event: RecordingFile.readAllEvents(file))
+				if (event.getEventType().getName().startsWith("scaryfingers."))
+					events++;
+			Files.delete(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		SearchStatistics s = last[0];
+		long pruned = 0, costs = 0, code_lengths = 0;
+		for (Pruning reason: Pruning.values())
+			pruned += s.pruned(reason);
+		for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+			costs += s.costs[i];
+			code_lengths += s.code_lengths[i];
+		}
+		if (calls[1] != 1 || calls[0] != s.rounds() / 4096 + 1 || s.steps() != c.steps() || s.expansions() == 0
+		    || s.pruned(Pruning.INCONSISTENT) == 0 || pruned > s.rounds() + s.expansions()
+		    || costs != s.rounds() / SAMPLE_INTERVAL || code_lengths != s.rounds() / SAMPLE_INTERVAL
+		    || events != calls[0] + calls[1]) {
+			System.err.println("search statistics after "+calls[0]+" progress reports and "+events+" events:\n"+s);
+			System.exit(1);
+		}
+
+		// so must those of PHASED, and each search of a session
+		calls[1] = 0;
+		Compressor phased = new Compressor(Compressor.Scheduler.PHASED);
+		phased.setListener(listener);
+		phased.compress(new byte[]{ 0, 1, 2 });
+		s = last[0];
+		costs = 0;
+		for (int i = 0; i < HISTOGRAM_SIZE; i++)
+			costs += s.costs[i];
+		if (calls[1] != 1 || s.steps() != phased.steps() || s.rounds() == 0 || s.expansions() == 0
+		    || s.pruned(Pruning.DOOMED) == 0 || costs != s.rounds() / SAMPLE_INTERVAL) {
+			System.err.println("phased search statistics:\n"+s);
+			System.exit(1);
+		}
+		calls[1] = 0;
+		finished_steps[0] = 0;
+		Compressor.Session session = c.session(xs.length);
+		for (byte x: xs) {
+			session.append(x);
+			session.currentBest();
+		}
+		if (calls[1] != xs.length || finished_steps[0] != session.steps() || last[0].pruned(Pruning.DOOMED) == 0) {
+			System.err.println(calls[1]+" session searches reported "+finished_steps[0]+" steps of "+session.steps()+", the last:\n"+last[0]);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import java.util.*;
+
+// the first step of all successors of a finished program, taken at
+// once.  the successors start out in their parent's state and differ
+// only in the instruction they run, so whether that step is illegal or
+// outputs something other than the next byte of xs depends on a handful
+// of facts about the parent: is the memory pointer at either end, is
+// the cell or the one to its left zero, is the cell a valid memory or
+// instruction index, is it the next byte of xs.  each fact dooms a fixed
+// set of instructions, so the doomed successors come out as a mask with
+// one bit per instruction (one lane per successor), without
+// constructing or running any of them.  the successors that survive
+// still take their first step one by one, as do those that jump off
+// into earlier code.
+public class SiblingBatch {
+	private static final byte[] INSTRUCTIONS = BrainfuckProgram.INSTRUCTIONS;
+
+	// facts about the parent
+	private static final int AT_ORIGIN = 0,   // memory_pointer is 0
+	                         AT_END = 1,      // memory_pointer is the last cell
+	                         LEFT_ZERO = 2,   // the cell to the left is zero (or absent)
+	                         ZERO = 3,        // the cell is zero
+	                         NOT_NEXT = 4,    // the cell is not the next byte of xs
+	                         NOT_MEMORY = 5,  // the cell is not a memory index
+	                         NOT_CODE = 6,    // the cell is not an index into the successors' code
+	                         FACT_COUNT = 7;
+
+	// bit i of doomed_by[f] is set if INSTRUCTIONS[i] fails when f holds
+	private static final long[] doomed_by = new long[FACT_COUNT];
+
+	static {
+		for (int i = 0; i < INSTRUCTIONS.length; i++) {
+			switch (INSTRUCTIONS[i]) {
+			case '.':
+				doomed_by[NOT_NEXT] |= 1L << i;
+				break;
+			case '<':
+				doomed_by[AT_ORIGIN] |= 1L << i;
+				break;
+			case '>':
+				doomed_by[AT_END] |= 1L << i;
+				break;
+			case '/':
+			case '%':
+				doomed_by[LEFT_ZERO] |= 1L << i;
+				doomed_by[AT_ORIGIN] |= 1L << i;
+				break;
+			case '+': case '-': case '*': case '|': case '&': case 'x':
+				doomed_by[AT_ORIGIN] |= 1L << i;
+				break;
+			case '[':
+				// the last instruction of the program has nothing to
+				// jump to when skipping its body
+				doomed_by[ZERO] |= 1L << i;
+				break;
+			case '@':
+				doomed_by[NOT_MEMORY] |= 1L << i;
+				break;
+			case '!':
+				doomed_by[NOT_CODE] |= 1L << i;
+				break;
+			}
+		}
+	}
+
+	// mask over indices into INSTRUCTIONS of the unpruned successors of
+	// p that, on their first step, become illegal or output something
+	// other than the next byte of xs.  p must be finished and legal, and
+	// must not have output all of xs.
+	public static long doomed(BrainfuckProgram p, byte[] xs) {
+		byte[] memory = p.memory;
+		int mp = p.memory_pointer;
+		byte cell = memory[mp];
+		long doomed = 0;
+		if (mp == 0)
+			doomed |= doomed_by[AT_ORIGIN] | doomed_by[LEFT_ZERO];
+		else if (memory[mp - 1] == 0)
+			doomed |= doomed_by[LEFT_ZERO];
+		if (mp == p.memory_size - 1)
+			doomed |= doomed_by[AT_END];
+		if (cell == 0)
+			doomed |= doomed_by[ZERO];
+		if (p.output_pointer < xs.length && cell != xs[p.output_pointer])
+			doomed |= doomed_by[NOT_NEXT];
+		if (cell < 0 || cell >= p.memory_size)
+			doomed |= doomed_by[NOT_MEMORY];
+		if (cell < 0 || cell >= p.length + 1)
+			doomed |= doomed_by[NOT_CODE];
+		return doomed & PruningAutomaton.allowed(p.automaton_state);
+	}
+
+	// check the masks against stepping each successor of a sample of
+	// finished programs for a few sequences
+	public static void test() {
+		byte[][] xss = {
+			{ 0, 1, 2, 3 },
+			{ 1, 2, 4, 8 },
+			{ 0, 0, 5, -1 },
+		};
+		for (int memory_size: new int[]{ 1, 2, 8 }) {
+			for (Program sample: Benchmark.frontier(3, memory_size)) {
+				BrainfuckProgram p = (BrainfuckProgram)sample;
+				if (!p.finished())
+					continue;
+				for (byte[] xs: xss) {
+					if (p.outputLength() >= xs.length || !p.incrementallyConsistentWith(xs))
+						continue;
+					long doomed = doomed(p, xs), allowed = PruningAutomaton.allowed(p.automaton_state);
+					for (int i = 0; i < INSTRUCTIONS.length; i++) {
+						if ((allowed >>> i & 1) == 0)
+							continue;
+						BrainfuckProgram q = new BrainfuckProgram(p, INSTRUCTIONS[i]);
+						if (q.illegal())
+							continue;
+						q.step();
+						boolean failed = q.illegal() || !q.incrementallyConsistentWith(xs);
+						if (failed != ((doomed >>> i & 1) != 0)) {
+							System.err.println("successor "+q+" of "+p+" with memory "+Arrays.toString(p.memory)
+							                   +(failed ? " fails" : " survives")+" its first step toward "+Arrays.toString(xs)
+							                   +" but is"+(failed ? " not" : "")+" marked doomed");
+							System.exit(1);
+						}
+					}
+				}
+			}
+		}
+	}
+}
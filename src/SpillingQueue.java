@@ -0,0 +1,340 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// a Frontier that keeps at most a given number of programs on the heap
+// and writes the rest out to segment files in a directory.  each bucket
+// is a FIFO made up of an in-memory head, a sequence of segments on disk
+// and an in-memory tail; new programs go to the tail and the head is
+// refilled from the first segment once it runs dry.  when there are too
+// many programs in memory, buckets are spilled starting from the highest
+// key, so that what stays in memory is what will be dequeued first.
+// the head of the lowest bucket is never spilled, so that peek() keeps
+// returning the same object until it is polled or displaced.
+public class SpillingQueue implements Frontier<Program> {
+	private static final long MAX_SEGMENT_BYTES = 64 << 20;
+
+	private final File directory;
+	private final int memory_size, max_in_memory;
+
+	private Bucket[] buckets;
+	private int offset; // key of buckets[0]
+	private int min; // no nonempty buckets below this index
+	private int size = 0, in_memory = 0;
+
+	private long bytes_written = 0, bytes_read = 0, write_nanos = 0, read_nanos = 0;
+	private int segments_written = 0;
+
+	private static class Bucket {
+		final ArrayDeque<Program> head = new ArrayDeque<Program>(), tail = new ArrayDeque<Program>();
+		final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+		boolean isEmpty() {
+			return head.isEmpty() && segments.isEmpty() && tail.isEmpty();
+		}
+	}
+
+	private static class Segment {
+		final File file;
+		final int count;
+		final long bytes;
+
+		Segment(File file, int count, long bytes) {
+			this.file = file;
+			this.count = count;
+			this.bytes = bytes;
+		}
+	}
+
+	public SpillingQueue(File directory, int memory_size, int max_in_memory) {
+		this.directory = directory;
+		this.memory_size = memory_size;
+		this.max_in_memory = max_in_memory;
+		buckets = new Bucket[16];
+		offset = 0;
+		min = buckets.length;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	// number of programs on the heap
+	public int inMemory() {
+		return in_memory;
+	}
+
+	@Override
+	public void add(Program p, int key) {
+		int i = key - offset;
+		if (i < 0 || i >= buckets.length) {
+			cover(key);
+			i = key - offset;
+		}
+		Bucket bucket = buckets[i];
+		if (bucket == null)
+			bucket = buckets[i] = new Bucket();
+		bucket.tail.addLast(p);
+		if (i < min)
+			min = i;
+		size++;
+		in_memory++;
+		if (in_memory > max_in_memory)
+			spill();
+	}
+
+	// key of the head, or Integer.MAX_VALUE if empty
+	@Override
+	public int peekKey() {
+		if (size == 0)
+			return Integer.MAX_VALUE;
+		advance();
+		return min + offset;
+	}
+
+	@Override
+	public Program peek() {
+		if (size == 0)
+			return null;
+		advance();
+		return head(buckets[min]).peekFirst();
+	}
+
+	@Override
+	public Program poll() {
+		if (size == 0)
+			return null;
+		advance();
+		size--;
+		in_memory--;
+		return head(buckets[min]).pollFirst();
+	}
+
+	// move min up to the first nonempty bucket; only call if size > 0
+	private void advance() {
+		while (buckets[min] == null || buckets[min].isEmpty())
+			min++;
+	}
+
+	// the bucket's head, refilled if empty; only call if nonempty
+	private ArrayDeque<Program> head(Bucket bucket) {
+		if (bucket.head.isEmpty()) {
+			if (!bucket.segments.isEmpty()) {
+				load(bucket.segments.pollFirst(), bucket.head);
+				if (in_memory > max_in_memory)
+					spill();
+			} else {
+				bucket.head.addAll(bucket.tail);
+				bucket.tail.clear();
+			}
+		}
+		return bucket.head;
+	}
+
+	// write out buckets from the top down until at most half of
+	// max_in_memory programs are left on the heap
+	private void spill() {
+		advance();
+		for (int i = buckets.length - 1; i >= min && in_memory > max_in_memory / 2; i--) {
+			Bucket bucket = buckets[i];
+			if (bucket == null)
+				continue;
+			if (!bucket.tail.isEmpty()) {
+				in_memory -= bucket.tail.size();
+				bucket.segments.addAll(store(bucket.tail));
+			}
+			if (i > min && !bucket.head.isEmpty()) {
+				in_memory -= bucket.head.size();
+				List<Segment> segments = store(bucket.head);
+				for (int j = segments.size() - 1; j >= 0; j--)
+					bucket.segments.addFirst(segments.get(j));
+			}
+		}
+	}
+
+	// write programs to one or more segments and clear the deque
+	private List<Segment> store(ArrayDeque<Program> programs) {
+		List<Segment> segments = new ArrayList<Segment>();
+		int max_count = Math.max(1, max_in_memory / 4);
+		while (!programs.isEmpty()) {
+			long bytes = 0;
+			int count = 0;
+			for (Program p: programs) {
+				int n = ((BrainfuckProgram)p).serializedSize();
+				if (count > 0 && (count == max_count || bytes + n > MAX_SEGMENT_BYTES))
+					break;
+				bytes += n;
+				count++;
+			}
+
+			long t0 = System.nanoTime();
+			try {
+				File file = File.createTempFile("segment", ".bin", directory);
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+					int offset = 0;
+					for (int k = 0; k < count; k++) {
+						BrainfuckProgram p = (BrainfuckProgram)programs.pollFirst();
+						p.writeTo(buffer, offset);
+						offset += p.serializedSize();
+					}
+				}
+				segments.add(new Segment(file, count, bytes));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			write_nanos += System.nanoTime() - t0;
+			bytes_written += bytes;
+			segments_written++;
+		}
+		return segments;
+	}
+
+	// read a segment back into programs and delete it
+	private void load(Segment segment, ArrayDeque<Program> programs) {
+		long t0 = System.nanoTime();
+		try {
+			try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.bytes);
+				int offset = 0;
+				for (int k = 0; k < segment.count; k++) {
+					BrainfuckProgram p = BrainfuckProgram.readFrom(buffer, offset, memory_size);
+					programs.addLast(p);
+					offset += p.serializedSize();
+				}
+			}
+			Files.delete(segment.file.toPath());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		read_nanos += System.nanoTime() - t0;
+		bytes_read += segment.bytes;
+		in_memory += segment.count;
+	}
+
+	// delete the segment files that are left
+	public void close() {
+		for (Bucket bucket: buckets) {
+			if (bucket == null)
+				continue;
+			for (Segment segment: bucket.segments)
+				segment.file.delete();
+			bucket.segments.clear();
+		}
+	}
+
+	public long bytesWritten() {
+		return bytes_written;
+	}
+
+	public long bytesRead() {
+		return bytes_read;
+	}
+
+	// in MB/s of time spent writing and reading segments
+	public double writeThroughput() {
+		return write_nanos == 0 ? 0 : bytes_written * 1e3 / write_nanos;
+	}
+
+	public double readThroughput() {
+		return read_nanos == 0 ? 0 : bytes_read * 1e3 / read_nanos;
+	}
+
+	@Override
+	public String toString() {
+		return size+" programs, "+in_memory+" in memory; "+segments_written+" segments, "
+			+String.format("%.1f MB written at %.0f MB/s, %.1f MB read at %.0f MB/s",
+			               bytes_written / 1e6, writeThroughput(), bytes_read / 1e6, readThroughput());
+	}
+
+	// grow the bucket array so that it covers key
+	private void cover(int key) {
+		int lo = Math.min(offset, key), hi = Math.max(offset + buckets.length, key + 1);
+		int length = buckets.length;
+		while (length < hi - lo)
+			length *= 2;
+		// leave some slack on the side that needed growing
+		int new_offset = key < offset ? hi - length : lo;
+
+		Bucket[] new_buckets = new Bucket[length];
+		System.arraycopy(buckets, 0, new_buckets, offset - new_offset, buckets.length);
+		min += offset - new_offset;
+		buckets = new_buckets;
+		offset = new_offset;
+	}
+
+	// check that spilling doesn't change the order of the queue, and
+	// that a search with a small in-memory limit runs as without
+	public static void test() {
+		File directory;
+		try {
+			directory = Files.createTempDirectory("spill").toFile();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		List<Program> sample = Benchmark.frontier(3, 8);
+		Random random = new Random(1);
+		SpillingQueue spilling = new SpillingQueue(directory, 8, 50);
+		BucketQueue<Program> reference = new BucketQueue<Program>();
+		for (int round = 0; round < 20000; round++) {
+			if (random.nextInt(3) > 0 || reference.isEmpty()) {
+				Program p = sample.get(random.nextInt(sample.size()));
+				int key = random.nextInt(40) - 10;
+				spilling.add(p, key);
+				reference.add(p, key);
+			} else {
+				int key = reference.peekKey();
+				Program p = reference.poll(), q = spilling.peek();
+				if (spilling.peekKey() != key || spilling.peek() != q || q != spilling.poll()
+				    || !(p+"@"+p.executionTime()).equals(q+"@"+q.executionTime())) {
+					System.err.println("spilling queue out of order: expected "+p+" with key "+key+", got "+q);
+					System.exit(1);
+				}
+			}
+			if (spilling.inMemory() > 50 + 50 / 4) {
+				System.err.println("spilling queue holds too much: "+spilling);
+				System.exit(1);
+			}
+		}
+		spilling.close();
+
+		byte[] xs = { 0, 1, 2, 3, 4, 5 };
+		Compressor c = new Compressor(), d = new Compressor();
+		d.setSpilling(directory, 100);
+		Program p = c.compress(xs), q = d.compress(xs);
+		if (!String.valueOf(p).equals(String.valueOf(q)) || c.steps() != d.steps()) {
+			System.err.println("in memory: "+p+" after "+c.steps()+" steps");
+			System.err.println("spilling:  "+q+" after "+d.steps()+" steps");
+			System.exit(1);
+		}
+
+		// the arena would be ignored
+		Compressor e = new Compressor();
+		e.setSpilling(directory, 100);
+		e.setMemoryBudget(1 << 20);
+		try {
+			e.compress(xs);
+			System.err.println("spilling with a memory budget should be refused");
+			System.exit(1);
+		} catch (IllegalStateException expected) {
+		}
+
+		String[] left = directory.list();
+		if (left.length > 0) {
+			System.err.println("segment files left behind: "+Arrays.toString(left));
+			System.exit(1);
+		}
+		directory.delete();
+	}
+}
@@ -0,0 +1,154 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// remembers the cheapest cost at which each program state has been seen,
+// so that programs that arrive at a state already reached by a cheaper
+// program can be dropped.  states are identified by their 64-bit hash
+// only.  the table has a fixed number of entries organized in sets of
+// WAYS; a full set evicts by the clock algorithm.  safe for use by
+// several threads, each set being guarded by one of a fixed number of
+// locks.
+public class TranspositionTable {
+	private static final int WAYS = 4, LOCK_COUNT = 64;
+
+	private final long[] states; // 0 marks an empty entry
+	private final int[] costs;
+	private final boolean[] referenced;
+	private final int[] hands; // clock hand per set
+	private final int set_mask;
+	private final Object[] locks = new Object[LOCK_COUNT];
+
+	private final LongAdder lookups = new LongAdder(),
+	                        hits = new LongAdder(),
+	                        evictions = new LongAdder();
+
+	// a table of at least the given number of entries
+	public TranspositionTable(int capacity) {
+		int set_count = 1;
+		while (set_count * WAYS < capacity)
+			set_count *= 2;
+		states = new long[set_count * WAYS];
+		costs = new int[set_count * WAYS];
+		referenced = new boolean[set_count * WAYS];
+		hands = new int[set_count];
+		set_mask = set_count - 1;
+		for (int i = 0; i < LOCK_COUNT; i++)
+			locks[i] = new Object();
+	}
+
+	public int capacity() {
+		return states.length;
+	}
+
+	// whether state has been seen at a cost no higher than cost.  if not,
+	// record it at this cost.
+	public boolean dominated(long state, int cost) {
+		if (state == 0)
+			state = 1;
+		int set = (int)(Util.mix(state) & set_mask), base = set * WAYS;
+		lookups.increment();
+		synchronized (locks[set & (LOCK_COUNT - 1)]) {
+			int empty = -1;
+			for (int i = base; i < base + WAYS; i++) {
+				if (states[i] == state) {
+					referenced[i] = true;
+					if (costs[i] <= cost) {
+						hits.increment();
+						return true;
+					}
+					costs[i] = cost;
+					return false;
+				}
+				if (states[i] == 0 && empty < 0)
+					empty = i;
+			}
+			int i = empty >= 0 ? empty : victim(set);
+			states[i] = state;
+			costs[i] = cost;
+			referenced[i] = true;
+			return false;
+		}
+	}
+
+	// the entry of a full set to be replaced; caller holds the set's lock
+	private int victim(int set) {
+		int base = set * WAYS;
+		for (;;) {
+			int i = base + hands[set];
+			hands[set] = (hands[set] + 1) % WAYS;
+			if (referenced[i]) {
+				referenced[i] = false;
+			} else {
+				evictions.increment();
+				return i;
+			}
+		}
+	}
+
+	public long lookups() {
+		return lookups.sum();
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public double hitRate() {
+		long n = lookups();
+		return n == 0 ? 0 : (double)hits() / n;
+	}
+
+	@Override
+	public String toString() {
+		return lookups()+" lookups, "+hits()+" hits ("+String.format("%.1f", 100*hitRate())+"%), "+evictions()+" evictions";
+	}
+
+	public static void test() {
+		TranspositionTable table = new TranspositionTable(16);
+		if (table.dominated(42, 5) || !table.dominated(42, 5) || !table.dominated(42, 6)
+		    || table.dominated(42, 4) || !table.dominated(42, 4)) {
+			System.err.println("transposition table doesn't keep the cheapest cost");
+			System.exit(1);
+		}
+
+		// more states than entries: the table must stay within capacity
+		for (long state = 1; state <= 1000; state++)
+			table.dominated(state, 0);
+		if (table.evictions() < 1000 - table.capacity()) {
+			System.err.println("transposition table holds more than its capacity: "+table);
+			System.exit(1);
+		}
+
+		// finished states that differ only in cell 0 are not
+		// transpositions of one another, and must hash apart and nonzero
+		String[][] groups = { { "^>", "^^v>" }, { "^^>" }, { "^" }, { "^^" }, { "^^^" }, { "v" } };
+		TranspositionTable states = new TranspositionTable(1 << 10);
+		for (int i = 0; i < groups.length; i++) {
+			for (int j = 0; j < groups[i].length; j++) {
+				Program q = new BrainfuckProgram(groups[i][j].getBytes(), 4);
+				while (!q.finished())
+					q.step();
+				long state = q.stateHash();
+				if (state == 0 || states.dominated(state, 0) != (j > 0)) {
+					System.err.println("finished state of "+groups[i][j]+" wrongly "+(j > 0 ? "not " : "")+"taken for a transposition");
+					System.exit(1);
+				}
+			}
+		}
+
+		// pruning transpositions must still find a decompressor, and
+		// should skip some programs along the way
+		byte[] xs = { 0, 1, 2, 3, 4, 5 };
+		Compressor c = new Compressor();
+		c.setTranspositionTable(new TranspositionTable(1 << 16));
+		Program p = c.compress(xs);
+		if (p == null || !p.incrementallyConsistentWith(xs) || p.outputLength() != xs.length
+		    || c.transpositionTable().hits() == 0) {
+			System.err.println("search with transposition table: "+p+", "+c.transpositionTable());
+			System.exit(1);
+		}
+	}
+}
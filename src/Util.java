@@ -19,6 +19,13 @@ public class Util {
 		return (int)Math.pow(2, exponent);
 	}
 	
+	// scramble the bits of x (the finalizer of splitmix64)
+	public static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
+	}
+
 	public static double log2(double x) {
 		return Math.log(x) / Math.log(2);
 	}